@@ -0,0 +1,228 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Benchmark Fixtures
+ *
+ * Generates a template, stylesheets, fragments and emails of a given shape
+ * into a directory so each benchmark parameter exercises one dimension of the
+ * pipeline: include depth, fragment count, parameter count, stylesheet size
+ * or document size.
+ */
+final class Fixtures {
+    static final String EMAIL = "email.html";
+    static final String FLAT = "flat.html";
+    static final String FRAGMENT = "fragment.inc";
+
+    /**
+     * Shape of a generated fixture
+     */
+    enum Shape {
+        small(1, 2, 2, 20, 10),
+        deepIncludes(8, 2, 2, 20, 10),
+        manyFragments(1, 32, 2, 20, 10),
+        manyParameters(1, 2, 16, 20, 10),
+        largeStylesheet(1, 2, 2, 500, 10),
+        largeDocument(1, 2, 2, 20, 1000);
+
+        final int includeDepth;
+        final int fragments;
+        final int parameters;
+        final int rules;
+        final int rows;
+
+        Shape(int includeDepth, int fragments, int parameters, int rules, int rows) {
+            this.includeDepth = includeDepth;
+            this.fragments = fragments;
+            this.parameters = parameters;
+            this.rules = rules;
+            this.rows = rows;
+        }
+    }
+
+    private Fixtures() {
+    }
+
+    /**
+     * Write the fixture files
+     *
+     * Produces {@value #EMAIL}, which uses the template, and {@value #FLAT},
+     * the same content with the inline stylesheet linked directly and no
+     * template.
+     *
+     * @param shape fixture shape
+     * @param dir target directory
+     * @throws IOException writing the files
+     */
+    static void write(Shape shape, Path dir) throws IOException {
+        write(dir.resolve("template.tmpl"),
+                "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n"
+                + "<html xmlns=\"http://www.w3.org/1999/xhtml\">\n"
+                + "<head>\n"
+                + "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />\n"
+                + "<link rel=\"stylesheet\" href=\"normal.css\"/>\n"
+                + "<link rel=\"stylesheet\" href=\"inline.css\" ui:inline=\"\" />\n"
+                + "</head>\n"
+                + "<body>\n"
+                + "<table class=\"wrapper\" id=\"main\">\n"
+                + "<tr><td class=\"header\"><ui:include section=\"header\" /></td></tr>\n"
+                + "<tr><td><ui:include section=\"content\" /></td></tr>\n"
+                + "</table>\n"
+                + "</body>\n"
+                + "</html>\n");
+
+        write(dir.resolve("normal.css"),
+                "@media only screen and (max-width: 600px) { .wrapper { width: 100% !important; } }\n"
+                + "a:hover { color: red; }\n");
+
+        write(dir.resolve("inline.css"), stylesheet(shape.rules));
+        write(dir.resolve(FRAGMENT), fragment(shape.parameters));
+
+        for(int level = 1; level <= shape.includeDepth; level++)
+            write(dir.resolve("nested" + level + ".inc"), nested(level, shape.includeDepth));
+
+        String content = content(shape);
+
+        write(dir.resolve(EMAIL),
+                "<html ui:template=\"template.tmpl\">\n"
+                + "<head><title>Benchmark {{name}}</title></head>\n"
+                + "<body>\n"
+                + "<ui:section name=\"header\"><strong>Benchmark</strong> email</ui:section>\n"
+                + "<ui:section name=\"content\">\n" + content + "</ui:section>\n"
+                + "</body>\n"
+                + "</html>\n");
+
+        write(dir.resolve(FLAT),
+                "<html>\n"
+                + "<head>\n"
+                + "<title>Benchmark {{name}}</title>\n"
+                + "<link rel=\"stylesheet\" href=\"inline.css\" ui:inline=\"\" />\n"
+                + "</head>\n"
+                + "<body>\n"
+                + "<table class=\"wrapper\" id=\"main\"><tr><td>\n" + content + "</td></tr></table>\n"
+                + "</body>\n"
+                + "</html>\n");
+    }
+
+    /**
+     * @param shape fixture shape
+     * @return the values passed to every parameter of the fragment
+     */
+    static Map<String, String> parameters(Shape shape) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("class", "row");
+        for(int i = 0; i < shape.parameters; i++)
+            parameters.put("p" + i, "Value <b>" + i + "</b> for {{name}}");
+        return parameters;
+    }
+
+    private static String stylesheet(int rules) {
+        StringBuilder css = new StringBuilder();
+        css.append("body { margin: 0; padding: 0; font-family: Arial, sans-serif; }\n");
+        css.append("td { padding: 2px; color: #000000; }\n");
+        css.append("#main { width: 600px; }\n");
+
+        for(int i = 0; i < rules; i++) {
+            switch(i % 4) {
+                case 0:
+                    css.append(".c").append(i).append(" { color: #").append(String.format("%06x", i * 997 & 0xffffff)).append("; }\n");
+                    break;
+                case 1:
+                    css.append("table.wrapper td .c").append(i).append(" { padding: ").append(i % 10).append("px; }\n");
+                    break;
+                case 2:
+                    css.append("p.c").append(i).append(" { line-height: 1.").append(i % 10).append("; }\n");
+                    break;
+                default:
+                    css.append("div > .c").append(i).append(" { margin: 0 ").append(i % 10).append("px; }\n");
+                    break;
+            }
+        }
+
+        return css.toString();
+    }
+
+    private static String fragment(int parameters) {
+        StringBuilder html = new StringBuilder("<div><parameter name=\"class\" attr=\"class\" />\n");
+        for(int i = 0; i < parameters; i++) {
+            html.append("<p class=\"c").append(i).append("\"><parameter name=\"p").append(i).append("\" /></p>\n");
+        }
+        html.append("<!--[if mso]><v:rect><parameter name=\"class\" /></v:rect><![endif]-->\n");
+        html.append("</div>\n");
+        return html.toString();
+    }
+
+    private static String nested(int level, int depth) {
+        if(level == depth)
+            return "<span class=\"c" + level + "\"><parameter name=\"label\" /></span>\n";
+
+        return "<div class=\"c" + level + "\">" + importNested(level + 1, depth) + "</div>\n";
+    }
+
+    /**
+     * Only the innermost fragment takes a parameter. A parameter passed
+     * through an intermediate level would be replaced by that level's own
+     * values before reaching it.
+     */
+    private static String importNested(int level, int depth) {
+        return "<link rel=\"import\" href=\"nested" + level + ".inc\">"
+                + (level == depth ? "<parameter name=\"label\">Level " + level + "</parameter>" : "")
+                + "</link>";
+    }
+
+    private static String content(Shape shape) {
+        StringBuilder html = new StringBuilder();
+
+        for(int i = 0; i < shape.rows; i++) {
+            html.append("<p class=\"c").append(i % Math.max(shape.rules, 1)).append("\">Row ").append(i)
+                    .append(" for {{name}}, with   some <a href=\"http://example.com/?row=").append(i)
+                    .append("&amp;id={{id}}\">text</a>.</p>\n");
+        }
+
+        for(int i = 0; i < shape.fragments; i++) {
+            html.append("<link rel=\"import\" href=\"").append(FRAGMENT).append("\">");
+            for(Map.Entry<String, String> parameter : parameters(shape).entrySet()) {
+                html.append("<parameter name=\"").append(parameter.getKey()).append("\">")
+                        .append(parameter.getValue()).append("</parameter>");
+            }
+            html.append("</link>\n");
+        }
+
+        html.append(importNested(1, shape.includeDepth)).append('\n');
+
+        return html.toString();
+    }
+
+    private static void write(Path path, String content) throws IOException {
+        Files.write(path, content.getBytes(Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.select.NodeTraversor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Template Processor Benchmarks
+ *
+ * Measures the whole pipeline and each of its phases against generated
+ * fixtures. The parse cache is warm, so the numbers reflect steady state
+ * processing rather than file I/O.
+ *
+ * The phase benchmarks mutate their input, so each one works on a fresh clone.
+ * The clone benchmarks measure that overhead so it can be subtracted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TemplateProcessorBenchmark {
+    @Param({"small", "deepIncludes", "manyFragments", "manyParameters", "largeStylesheet", "largeDocument"})
+    public String shape;
+
+    private Path dir;
+    private Path email;
+    private TemplateProcessor processor;
+
+    // Phase inputs
+    private Document source;
+    private Document styled;
+    private Element fragment;
+    private Map<String, IncludeParameter> parameters;
+    private Document output;
+
+    @Setup
+    public void setup() throws Exception {
+        Fixtures.Shape fixture = Fixtures.Shape.valueOf(shape);
+
+        dir = Files.createTempDirectory("emailtemplates-jmh");
+        Fixtures.write(fixture, dir);
+
+        email = dir.resolve(Fixtures.EMAIL);
+        processor = new TemplateProcessor();
+
+        source = parse(email);
+
+        styled = parse(dir.resolve(Fixtures.FLAT));
+        processor.processLinks(styled, dir.toString(), new ProcessorContext());
+
+        fragment = parse(dir.resolve(Fixtures.FRAGMENT));
+        parameters = new HashMap<>();
+        for(Map.Entry<String, String> parameter : Fixtures.parameters(fixture).entrySet()) {
+            Document holder = Jsoup.parse("<parameter>" + parameter.getValue() + "</parameter>", "", Parser.xmlParser());
+            parameters.put(parameter.getKey(), new IncludeParameter(holder.child(0)));
+        }
+
+        output = Jsoup.parse(processor.process(email).getHtml(), "", Parser.xmlParser());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for(Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    @Benchmark
+    public ProcessorContext process() throws Exception {
+        return processor.process(email);
+    }
+
+    @Benchmark
+    public Document processLinks() {
+        Document doc = source.clone();
+        processor.processLinks(doc, dir.toString(), new ProcessorContext());
+        return doc;
+    }
+
+    @Benchmark
+    public Document extractAndApplyStyles() throws IOException {
+        Document doc = styled.clone();
+        processor.extractAndApplyStyles(doc, new ProcessorContext());
+        return doc;
+    }
+
+    @Benchmark
+    public Element applyParameters() {
+        Element element = fragment.clone();
+        processor.applyParameters(element, parameters);
+        return element;
+    }
+
+    @Benchmark
+    public String minify() {
+        MinifyHtmlVisitor visitor = new MinifyHtmlVisitor(false);
+        new NodeTraversor(visitor).traverse(output);
+        return visitor.getHtml();
+    }
+
+    @Benchmark
+    public String applyStylesAndMinify() throws IOException {
+        Document doc = styled.clone();
+        processor.extractAndApplyStyles(doc, new ProcessorContext());
+
+        MinifyHtmlVisitor visitor = new MinifyHtmlVisitor(false);
+        new NodeTraversor(visitor).traverse(doc);
+        return visitor.getHtml();
+    }
+
+    @Benchmark
+    public String computeStylesAndMinify() throws IOException {
+        Document doc = styled.clone();
+        InlineStyles styles = processor.extractStyles(doc, new ProcessorContext());
+
+        MinifyHtmlVisitor visitor = new MinifyHtmlVisitor(new StringBuilder(), false, styles);
+        new NodeTraversor(visitor).traverse(doc);
+        return visitor.getHtml();
+    }
+
+    @Benchmark
+    public Document cloneSource() {
+        return source.clone();
+    }
+
+    @Benchmark
+    public Document cloneStyled() {
+        return styled.clone();
+    }
+
+    private static Document parse(Path path) throws IOException {
+        try (InputStream input = Files.newInputStream(path)) {
+            return Jsoup.parse(input, Charsets.UTF_8.name(), "", Parser.xmlParser());
+        }
+    }
+}
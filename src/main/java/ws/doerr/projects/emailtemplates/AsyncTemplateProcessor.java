@@ -0,0 +1,295 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous Template Processor
+ *
+ * Runs a thread safe {@link TemplateProcessor} on an executor and returns
+ * futures. By default renders run on virtual threads when the JVM provides
+ * them, otherwise on a fixed pool of daemon threads.
+ *
+ * The number of renders submitted but not yet finished is capped. Submitting
+ * never blocks the caller: once the cap is reached the returned future fails
+ * straight away with a RejectedExecutionException, so a burst is shed rather
+ * than queued without limit.
+ *
+ * On virtual threads each render runs on a thread of its own, so the
+ * processor's per thread parser is created for every render. Its output
+ * encoders are pooled and are reused either way.
+ *
+ * Cancelling a returned future, or letting its timeout expire, interrupts the
+ * render if it is still running.
+ */
+public class AsyncTemplateProcessor implements Closeable {
+    private static final Logger LOG = Logger.getLogger(AsyncTemplateProcessor.class.getName());
+
+    /**
+     * Default maximum number of renders in flight
+     */
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    private final TemplateProcessor processor;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Semaphore permits;
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Create an async processor with the default executor and limit
+     *
+     * @param processor processor used for the renders
+     */
+    public AsyncTemplateProcessor(TemplateProcessor processor) {
+        this(processor, newDefaultExecutor(Runtime.getRuntime().availableProcessors()), DEFAULT_MAX_PENDING, true);
+    }
+
+    /**
+     * Create an async processor on a caller supplied executor
+     *
+     * The executor isn't shut down when this processor is closed.
+     *
+     * @param processor processor used for the renders
+     * @param executor executor the renders run on
+     * @param maxPending maximum number of renders submitted but not finished
+     */
+    public AsyncTemplateProcessor(TemplateProcessor processor, ExecutorService executor, int maxPending) {
+        this(processor, executor, maxPending, false);
+    }
+
+    private AsyncTemplateProcessor(TemplateProcessor processor, ExecutorService executor, int maxPending,
+            boolean ownsExecutor) {
+        if(maxPending < 1)
+            throw new IllegalArgumentException("maxPending must be at least 1");
+
+        this.processor = processor;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.permits = new Semaphore(maxPending);
+
+        timer = new ScheduledThreadPoolExecutor(1, daemonThreads("TemplateProcessor-timeout-"));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Create the default executor
+     *
+     * Uses a virtual thread per task when the JVM supports it, otherwise a
+     * fixed pool of daemon threads.
+     *
+     * @param threads pool size used when virtual threads aren't available
+     * @return the executor
+     */
+    public static ExecutorService newDefaultExecutor(int threads) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch(ReflectiveOperationException ex) {
+            LOG.log(Level.FINE, "Virtual threads not available, using a pool of {0} threads", threads);
+        }
+
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                daemonThreads("TemplateProcessor-worker-"));
+    }
+
+    /**
+     * @return the processor used for the renders
+     */
+    public TemplateProcessor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * @return the number of renders that can be submitted before they are
+     * rejected
+     */
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Process a source file
+     *
+     * @param source path of the file to process
+     * @return future for the resulting context
+     * @see TemplateProcessor#process(Path)
+     */
+    public CompletableFuture<ProcessorContext> processAsync(Path source) {
+        return submit(() -> processor.process(source), 0, null);
+    }
+
+    /**
+     * Process a source file to an output path
+     *
+     * @param source source file path
+     * @param destination destination file path
+     * @return future for the resulting context
+     * @see TemplateProcessor#process(Path, Path)
+     */
+    public CompletableFuture<ProcessorContext> processAsync(Path source, Path destination) {
+        return submit(() -> processor.process(source, destination), 0, null);
+    }
+
+    /**
+     * Process a source file to an output path with a time limit
+     *
+     * @param source source file path
+     * @param destination destination file path, may be null
+     * @param timeout time allowed for the render, measured from submission
+     * @param unit unit of the timeout
+     * @return future for the resulting context, completed with a
+     * TimeoutException if the render doesn't finish in time
+     */
+    public CompletableFuture<ProcessorContext> processAsync(Path source, Path destination, long timeout, TimeUnit unit) {
+        return submit(() -> processor.process(source, destination), timeout, unit);
+    }
+
+    /**
+     * Process a source input stream directly to an output stream with a time
+     * limit
+     *
+     * Neither stream is closed.
+     *
+     * @param input input source stream
+     * @param relative relative path for opening included files
+     * @param output destination for the html
+     * @param timeout time allowed for the render, measured from submission
+     * @param unit unit of the timeout
+     * @return future for the resulting context, completed with a
+     * TimeoutException if the render doesn't finish in time
+     */
+    public CompletableFuture<ProcessorContext> processAsync(InputStream input, Path relative, OutputStream output,
+            long timeout, TimeUnit unit) {
+        return submit(() -> processor.process(input, relative, output), timeout, unit);
+    }
+
+    /**
+     * Stop accepting renders
+     *
+     * Renders already submitted still complete. The executor is shut down only
+     * if it was created by this processor.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        if(ownsExecutor)
+            executor.shutdown();
+    }
+
+    private CompletableFuture<ProcessorContext> submit(Callable<ProcessorContext> render, long timeout, TimeUnit unit) {
+        CompletableFuture<ProcessorContext> result = new CompletableFuture<>();
+
+        if(!permits.tryAcquire()) {
+            result.completeExceptionally(new RejectedExecutionException("Too many renders pending"));
+            return result;
+        }
+
+        RenderTask task = new RenderTask(render, result);
+        try {
+            executor.execute(task);
+        } catch(RejectedExecutionException ex) {
+            permits.release();
+            result.completeExceptionally(ex);
+            return result;
+        }
+
+        ScheduledFuture<?> expiry = unit == null ? null : timer.schedule(
+                () -> result.completeExceptionally(new TimeoutException("Render timed out after " + timeout + " " + unit)),
+                timeout, unit);
+
+        // Cancellation or expiry of the result stops the render
+        result.whenComplete((context, ex) -> {
+            task.cancel(true);
+            if(expiry != null)
+                expiry.cancel(false);
+        });
+
+        return result;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Render that hands its outcome to the result future and frees its permit
+     * however it ends, including being cancelled before it started
+     */
+    private final class RenderTask extends FutureTask<ProcessorContext> {
+        private final CompletableFuture<ProcessorContext> result;
+
+        RenderTask(Callable<ProcessorContext> render, CompletableFuture<ProcessorContext> result) {
+            super(render);
+            this.result = result;
+        }
+
+        @Override
+        protected void done() {
+            permits.release();
+
+            if(isCancelled()) {
+                result.cancel(false);
+                return;
+            }
+
+            try {
+                result.complete(get());
+            } catch(ExecutionException ex) {
+                result.completeExceptionally(ex.getCause());
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Batch Template Processor
+ *
+ * Compiles every email in a source directory tree into the same relative
+ * location in an output tree. Files are processed in parallel on a fork-join
+ * pool and all workers share a single template processor and parse cache, so
+ * common templates, fragments and stylesheets are only parsed once for the
+ * whole batch.
+ */
+public class BatchProcessor {
+    private static final Logger LOG = Logger.getLogger(BatchProcessor.class.getName());
+
+    /**
+     * Default pattern used to select the emails in the source tree
+     */
+    public static final String DEFAULT_PATTERN = "glob:*.{html,htm}";
+
+    private final TemplateProcessor processor;
+    private final int parallelism;
+    private final PathMatcher matcher;
+
+    /**
+     * Create the default batch processor
+     *
+     * Uses one worker per available processor, adds no meta tags and keeps
+     * html comments
+     */
+    public BatchProcessor() {
+        this(Collections.emptyMap(), false, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a batch processor with properties
+     *
+     * @param meta meta tags to add to the template header
+     * @param removeComments if true, remove any html comments from the output
+     * @param parallelism number of worker threads
+     */
+    public BatchProcessor(Map<String, String> meta, boolean removeComments, int parallelism) {
+        this(meta, removeComments, parallelism, new ParseCache(), DEFAULT_PATTERN);
+    }
+
+    /**
+     * Create a batch processor with properties
+     *
+     * @param meta meta tags to add to the template header
+     * @param removeComments if true, remove any html comments from the output
+     * @param parallelism number of worker threads
+     * @param cache parse cache shared by all the workers
+     * @param pattern {@link java.nio.file.FileSystem#getPathMatcher(String)}
+     * pattern matched against file names to select the emails to compile
+     */
+    public BatchProcessor(Map<String, String> meta, boolean removeComments, int parallelism,
+            ParseCache cache, String pattern) {
+        this(new TemplateProcessor(meta, removeComments, cache), parallelism, pattern);
+    }
+
+    /**
+     * Create a batch processor around an existing template processor
+     *
+     * @param processor template processor shared by all the workers
+     * @param parallelism number of worker threads
+     * @param pattern {@link java.nio.file.FileSystem#getPathMatcher(String)}
+     * pattern matched against file names to select the emails to compile
+     */
+    public BatchProcessor(TemplateProcessor processor, int parallelism, String pattern) {
+        this.processor = processor;
+        this.parallelism = parallelism;
+        this.matcher = FileSystems.getDefault().getPathMatcher(pattern);
+    }
+
+    /**
+     * @return the template processor shared by the workers
+     */
+    public TemplateProcessor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * @return the parse cache shared by the workers
+     */
+    public ParseCache getCache() {
+        return processor.getCache();
+    }
+
+    /**
+     * Compile every email in a source tree
+     *
+     * @param sourceRoot root of the source tree
+     * @param outputRoot root of the output tree
+     * @return summary of the batch
+     * @throws IOException walking the source tree
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public BatchResult process(Path sourceRoot, Path outputRoot) throws IOException, InterruptedException {
+        return compile(findEmails(sourceRoot), sourceRoot, outputRoot, null, 0);
+    }
+
+    /**
+     * Incrementally compile a source tree
+     *
+     * Only emails that are new, have no output, or whose source or recorded
+     * dependencies changed since the last build are compiled. The manifest is
+     * updated with the new dependencies and saved.
+     *
+     * @param sourceRoot root of the source tree
+     * @param outputRoot root of the output tree
+     * @param manifest dependency manifest from the previous build
+     * @return summary of the batch, covering only the compiled emails
+     * @throws IOException walking the source tree or saving the manifest
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public BatchResult process(Path sourceRoot, Path outputRoot, DependencyManifest manifest)
+            throws IOException, InterruptedException {
+        List<Path> emails = findEmails(sourceRoot);
+
+        // Forget emails that no longer exist
+        Path root = DependencyManifest.normalize(sourceRoot);
+        Set<Path> current = emails.stream()
+                .map(DependencyManifest::normalize)
+                .collect(Collectors.toSet());
+        manifest.getEmails().stream()
+                .filter(email -> email.startsWith(root) && !current.contains(email))
+                .forEach(manifest::remove);
+
+        Set<Path> stale = manifest.getStale(emails);
+        List<Path> sources = emails.stream()
+                .filter(email -> stale.contains(email) || !Files.exists(destination(email, sourceRoot, outputRoot)))
+                .collect(Collectors.toList());
+
+        BatchResult result = compile(sources, sourceRoot, outputRoot, manifest, emails.size() - sources.size());
+        manifest.save();
+
+        return result;
+    }
+
+    /**
+     * Compile a specific set of emails from a source tree
+     *
+     * @param sources emails to compile
+     * @param sourceRoot root of the source tree
+     * @param outputRoot root of the output tree
+     * @param manifest manifest to record the dependencies in, may be null.
+     * The manifest isn't saved
+     * @return summary of the batch
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public BatchResult process(Collection<Path> sources, Path sourceRoot, Path outputRoot, DependencyManifest manifest)
+            throws InterruptedException {
+        return compile(new ArrayList<>(sources), sourceRoot, outputRoot, manifest, 0);
+    }
+
+    /**
+     * @param path file to check
+     * @return true if the file name matches the email pattern
+     */
+    boolean isEmail(Path path) {
+        return matcher.matches(path.getFileName());
+    }
+
+    private List<Path> findEmails(Path sourceRoot) throws IOException {
+        try (Stream<Path> walk = Files.walk(sourceRoot)) {
+            return walk
+                    .filter(Files::isRegularFile)
+                    .filter(this::isEmail)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private BatchResult compile(List<Path> sources, Path sourceRoot, Path outputRoot, DependencyManifest manifest,
+            int skipped) throws InterruptedException {
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<BatchResult.FileResult> results = pool.invoke(
+                    new CompileTask(sources, 0, sources.size(), sourceRoot, outputRoot, manifest));
+
+            return new BatchResult(results, skipped, System.nanoTime() - start);
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * @return the output file of an email
+     */
+    static Path destination(Path source, Path sourceRoot, Path outputRoot) {
+        return outputRoot.resolve(sourceRoot.relativize(source).toString());
+    }
+
+    /**
+     * Compile a single email
+     *
+     * @param source source file
+     * @param sourceRoot root of the source tree
+     * @param outputRoot root of the output tree
+     * @param manifest manifest to record the dependencies in, may be null
+     * @return outcome for the file
+     */
+    private BatchResult.FileResult compile(Path source, Path sourceRoot, Path outputRoot, DependencyManifest manifest) {
+        Path destination = destination(source, sourceRoot, outputRoot);
+
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(destination.getParent());
+
+            ProcessorContext context = processor.process(source, destination);
+
+            if(manifest != null)
+                manifest.record(source, context);
+
+            return new BatchResult.FileResult(source, destination, System.nanoTime() - start,
+                    context.getDependencies(), null);
+        } catch(Exception ex) {
+            LOG.log(Level.WARNING, "Exception processing " + source, ex);
+
+            // Make sure a failed email is retried on the next build
+            if(manifest != null)
+                manifest.remove(source);
+
+            return new BatchResult.FileResult(source, destination, System.nanoTime() - start,
+                    Collections.emptySet(), ex);
+        }
+    }
+
+    /**
+     * Fork-join task compiling a range of the source list
+     */
+    private class CompileTask extends RecursiveTask<List<BatchResult.FileResult>> {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 4;
+
+        private final List<Path> sources;
+        private final int from;
+        private final int to;
+        private final Path sourceRoot;
+        private final Path outputRoot;
+        private final DependencyManifest manifest;
+
+        CompileTask(List<Path> sources, int from, int to, Path sourceRoot, Path outputRoot,
+                DependencyManifest manifest) {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+            this.sourceRoot = sourceRoot;
+            this.outputRoot = outputRoot;
+            this.manifest = manifest;
+        }
+
+        @Override
+        protected List<BatchResult.FileResult> compute() {
+            if(to - from <= THRESHOLD) {
+                List<BatchResult.FileResult> results = new ArrayList<>(to - from);
+                for(int i = from; i < to; i++)
+                    results.add(compile(sources.get(i), sourceRoot, outputRoot, manifest));
+                return results;
+            }
+
+            int mid = (from + to) >>> 1;
+            CompileTask left = new CompileTask(sources, from, mid, sourceRoot, outputRoot, manifest);
+            CompileTask right = new CompileTask(sources, mid, to, sourceRoot, outputRoot, manifest);
+
+            left.fork();
+            List<BatchResult.FileResult> results = new ArrayList<>(right.compute());
+            results.addAll(0, left.join());
+            return results;
+        }
+    }
+
+    /**
+     * Command line entry point
+     *
+     * Usage: BatchProcessor [-m manifest] [-w] source-dir output-dir [threads]
+     *
+     * With -m only the emails affected by changes since the last build
+     * recorded in the manifest are compiled. With -w the processor keeps
+     * running after the build and recompiles emails as their sources change.
+     *
+     * @param args command line arguments
+     * @throws Exception processing the batch
+     */
+    public static void main(String[] args) throws Exception {
+        Path manifestFile = null;
+        boolean watch = false;
+        int arg = 0;
+
+        while(arg < args.length && args[arg].startsWith("-")) {
+            if("-m".equals(args[arg]) && arg + 1 < args.length) {
+                manifestFile = Paths.get(args[arg + 1]);
+                arg += 2;
+            } else if("-w".equals(args[arg])) {
+                watch = true;
+                arg++;
+            } else
+                break;
+        }
+
+        if(args.length - arg < 2) {
+            System.err.println("Usage: BatchProcessor [-m <manifest>] [-w] <source dir> <output dir> [threads]");
+            System.exit(2);
+        }
+
+        Path sourceRoot = Paths.get(args[arg]);
+        Path outputRoot = Paths.get(args[arg + 1]);
+        int threads = args.length - arg > 2 ?
+                Integer.parseInt(args[arg + 2]) :
+                Runtime.getRuntime().availableProcessors();
+
+        BatchProcessor batch = new BatchProcessor(Collections.emptyMap(), false, threads);
+
+        if(watch) {
+            if(manifestFile == null)
+                manifestFile = Files.createTempFile("emailtemplates", ".manifest");
+
+            TemplateWatcher watcher = new TemplateWatcher(batch, sourceRoot, outputRoot,
+                    DependencyManifest.load(manifestFile));
+            watcher.setListener(BatchProcessor::report);
+
+            report(watcher.start());
+            System.out.println("Watching " + sourceRoot + " for changes");
+
+            // The watcher runs on a daemon thread, so this never returns
+            Thread.currentThread().join();
+            return;
+        }
+
+        BatchResult result = manifestFile == null ?
+                batch.process(sourceRoot, outputRoot) :
+                batch.process(sourceRoot, outputRoot, DependencyManifest.load(manifestFile));
+
+        report(result);
+        System.out.println("Parse cache " + batch.getCache().getStats());
+
+        if(result.getFailureCount() > 0)
+            System.exit(1);
+    }
+
+    private static void report(BatchResult result) {
+        for(BatchResult.FileResult file : result.getFiles()) {
+            System.out.printf("%-6s %8.1f ms  %s%n",
+                    file.isSuccess() ? "OK" : "FAILED",
+                    file.getElapsedNanos() / 1e6,
+                    file.getSource());
+        }
+
+        System.out.printf("%d compiled, %d failed, %d up to date, %d dependencies in %.1f ms%n",
+                result.getSuccessCount(),
+                result.getFailureCount(),
+                result.getSkippedCount(),
+                result.getDependencies().size(),
+                result.getElapsedNanos() / 1e6);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *  Summary of a batch compilation
+ */
+public class BatchResult {
+    /**
+     * Outcome of a single file in the batch
+     */
+    public static class FileResult {
+        private final Path source;
+        private final Path destination;
+        private final long elapsedNanos;
+        private final Set<Dependency> dependencies;
+        private final Exception error;
+
+        FileResult(Path source, Path destination, long elapsedNanos, Set<Dependency> dependencies, Exception error) {
+            this.source = source;
+            this.destination = destination;
+            this.elapsedNanos = elapsedNanos;
+            this.dependencies = Collections.unmodifiableSet(dependencies);
+            this.error = error;
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public Path getDestination() {
+            return destination;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public Set<Dependency> getDependencies() {
+            return dependencies;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    private final List<FileResult> files;
+    private final int skipped;
+    private final long elapsedNanos;
+
+    BatchResult(List<FileResult> files, int skipped, long elapsedNanos) {
+        this.files = Collections.unmodifiableList(files);
+        this.skipped = skipped;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public List<FileResult> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return wall clock time for the whole batch
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getSuccessCount() {
+        return files.stream().filter(FileResult::isSuccess).count();
+    }
+
+    public long getFailureCount() {
+        return files.size() - getSuccessCount();
+    }
+
+    /**
+     * @return the number of emails an incremental build found up to date
+     */
+    public int getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * @return the union of the dependencies of every file in the batch
+     */
+    public Set<Dependency> getDependencies() {
+        Set<Dependency> dependencies = new HashSet<>();
+        files.forEach(file -> dependencies.addAll(file.getDependencies()));
+        return dependencies;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * Classpath Resource Loader
+ *
+ * Reads resources straight from the classpath, including from inside jars,
+ * so templates packaged with an application don't need to be unpacked. A
+ * path is normalized and its elements joined with '/' to form the resource
+ * name, after an optional prefix; a root is ignored.
+ *
+ * Classpath resources don't change while the class loader is alive, so every
+ * resource has the same version.
+ */
+public class ClasspathResourceLoader implements TemplateResourceLoader {
+    private static final Version VERSION = new Version(0, -1);
+
+    private final ClassLoader classLoader;
+    private final String prefix;
+
+    /**
+     * Create a loader over the class loader of this library
+     */
+    public ClasspathResourceLoader() {
+        this(ClasspathResourceLoader.class.getClassLoader(), "");
+    }
+
+    /**
+     * Create a loader
+     *
+     * @param classLoader class loader to read resources from
+     * @param prefix resource name prefix, such as "templates", or "" for none
+     */
+    public ClasspathResourceLoader(ClassLoader classLoader, String prefix) {
+        this.classLoader = classLoader;
+        this.prefix = prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+    @Override
+    public InputStream open(Path path) throws IOException {
+        InputStream input = classLoader.getResourceAsStream(name(path));
+        if(input == null)
+            throw new NoSuchFileException(path.toString());
+        return input;
+    }
+
+    @Override
+    public Version getVersion(Path path) throws IOException {
+        if(classLoader.getResource(name(path)) == null)
+            throw new NoSuchFileException(path.toString());
+        return VERSION;
+    }
+
+    /**
+     * @param path resource path
+     * @return the resource name for a path
+     * @throws NoSuchFileException if the path leaves the prefix
+     */
+    private String name(Path path) throws NoSuchFileException {
+        Path normalized = path.normalize();
+
+        StringBuilder name = new StringBuilder(prefix);
+        for(Path element : normalized) {
+            String part = element.toString();
+            if("..".equals(part))
+                throw new NoSuchFileException(path.toString());
+
+            if(name.length() > prefix.length())
+                name.append('/');
+            name.append(part);
+        }
+
+        return name.toString();
+    }
+}
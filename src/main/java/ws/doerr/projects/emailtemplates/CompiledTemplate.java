@@ -0,0 +1,170 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Processed template ready for mail merge
+ *
+ * The final html of a processed template is split once into static segments
+ * and named merge fields (<code>{{name}}</code> by default). Rendering for a
+ * recipient then only appends the segments and field values to the output,
+ * without touching the html parser or the css inliner.
+ *
+ * Instances are immutable and may be rendered concurrently.
+ */
+public final class CompiledTemplate {
+    public static final String DEFAULT_FIELD_OPEN = "{{";
+    public static final String DEFAULT_FIELD_CLOSE = "}}";
+
+    // segments.length is always fields.length + 1
+    private final String[] segments;
+    private final String[] fields;
+    private final Set<String> fieldNames;
+    private final int staticLength;
+
+    private CompiledTemplate(List<String> segments, List<String> fields) {
+        this.segments = segments.toArray(new String[segments.size()]);
+        this.fields = fields.toArray(new String[fields.size()]);
+        this.fieldNames = Collections.unmodifiableSet(new LinkedHashSet<>(fields));
+
+        int length = 0;
+        for(String segment : this.segments)
+            length += segment.length();
+        this.staticLength = length;
+    }
+
+    /**
+     * Compile html using the default merge field delimiters
+     *
+     * @param html processed html
+     * @return the compiled template
+     */
+    public static CompiledTemplate compile(String html) {
+        return compile(html, DEFAULT_FIELD_OPEN, DEFAULT_FIELD_CLOSE);
+    }
+
+    /**
+     * Compile html using custom merge field delimiters
+     *
+     * @param html processed html
+     * @param open merge field opening delimiter
+     * @param close merge field closing delimiter
+     * @return the compiled template
+     */
+    public static CompiledTemplate compile(String html, String open, String close) {
+        if(open.isEmpty() || close.isEmpty())
+            throw new IllegalArgumentException("Merge field delimiters can't be empty");
+
+        List<String> segments = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+
+        int start = 0;
+        int from = 0;
+        while(true) {
+            int openIdx = html.indexOf(open, from);
+            if(openIdx < 0)
+                break;
+
+            int closeIdx = html.indexOf(close, openIdx + open.length());
+            if(closeIdx < 0)
+                break;
+
+            String name = html.substring(openIdx + open.length(), closeIdx).trim();
+            if(name.isEmpty()) {
+                // Not a field, leave the delimiters in the static text
+                from = closeIdx + close.length();
+                continue;
+            }
+
+            segments.add(html.substring(start, openIdx));
+            fields.add(name);
+
+            start = closeIdx + close.length();
+            from = start;
+        }
+
+        segments.add(html.substring(start));
+
+        return new CompiledTemplate(segments, fields);
+    }
+
+    /**
+     * @return the names of the merge fields used in the template
+     */
+    public Set<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * Render the template
+     *
+     * Values are written verbatim so they must already be html safe. Fields
+     * without a value render as an empty string.
+     *
+     * @param values merge field values
+     * @param output destination for the rendered html
+     * @throws IOException writing to the output
+     */
+    public void render(Map<String, ?> values, Appendable output) throws IOException {
+        for(int i = 0; i < fields.length; i++) {
+            output.append(segments[i]);
+
+            Object value = values.get(fields[i]);
+            if(value instanceof CharSequence)
+                output.append((CharSequence) value);
+            else if(value != null)
+                output.append(value.toString());
+        }
+
+        output.append(segments[fields.length]);
+    }
+
+    /**
+     * Render the template to a String
+     *
+     * @param values merge field values
+     * @return the rendered html
+     */
+    public String render(Map<String, ?> values) {
+        StringBuilder sb = new StringBuilder(staticLength + fields.length * 16);
+
+        try {
+            render(values, sb);
+        } catch(IOException ex) {
+            // StringBuilder doesn't throw
+            throw new UncheckedIOException(ex);
+        }
+
+        return sb.toString();
+    }
+}
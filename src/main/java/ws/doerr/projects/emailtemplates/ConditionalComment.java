@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.parser.Parser;
+
+/**
+ * Pre-parsed Conditional Comment
+ *
+ * A conditional comment such as {@code <!--[if mso]>...<![endif]-->} split
+ * into its opener, parsed body and closer. The body is only copied and
+ * serialized when it contains parameters; otherwise the rendered comment is
+ * computed once.
+ *
+ * Instances are immutable and shared through the {@link ParseCache}.
+ */
+final class ConditionalComment {
+    private static final ConditionalComment NONE = new ConditionalComment(null, null, null);
+
+    private final String open;
+    private final Document body;
+    private final String close;
+    private final boolean parameters;
+    private final String rendered;
+
+    private ConditionalComment(String open, Document body, String close) {
+        this.open = open;
+        this.body = body;
+        this.close = close;
+
+        parameters = body != null && !body.getElementsByTag(TemplateProcessor.PARAMETER_TAG).isEmpty();
+        rendered = body == null || parameters ? null : render(body);
+    }
+
+    /**
+     * Split and parse a comment
+     *
+     * @param comment comment data
+     * @param parser parser for the body
+     * @return the parsed comment, {@link #isConditional()} is false if the
+     * comment has no closer
+     */
+    static ConditionalComment parse(String comment, Parser parser) {
+        int closeIdx = comment.indexOf("<!");
+        if(closeIdx < 0)
+            return NONE;
+
+        String open = comment.substring(0, comment.indexOf('>') + 1);
+        String close = comment.substring(closeIdx);
+
+        String body = comment.replace(open, "").replace(close, "");
+
+        return new ConditionalComment(open, Jsoup.parse(body, "", parser), close);
+    }
+
+    /**
+     * @return true if this is a conditional comment
+     */
+    boolean isConditional() {
+        return body != null;
+    }
+
+    /**
+     * @return true if the body contains parameters
+     */
+    boolean hasParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return a copy of the parsed body to apply parameters to
+     */
+    Document copyBody() {
+        return body.clone();
+    }
+
+    /**
+     * @return the rendered comment for a body without parameters
+     */
+    String getRendered() {
+        return rendered;
+    }
+
+    /**
+     * @param body body with the parameters applied
+     * @return the comment data for the body
+     */
+    String render(Document body) {
+        return open + body.html() + close;
+    }
+}
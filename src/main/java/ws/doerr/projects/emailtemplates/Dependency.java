@@ -24,6 +24,7 @@
 package ws.doerr.projects.emailtemplates;
 
 import java.nio.file.Path;
+import java.util.Objects;
 
 /**
  *  Dependency item for a template
@@ -54,4 +55,25 @@ public class Dependency {
     public DependencyType getType() {
         return type;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Dependency))
+            return false;
+
+        Dependency other = (Dependency) o;
+        return type == other.type && Objects.equals(path, other.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(path) + Objects.hashCode(type);
+    }
+
+    @Override
+    public String toString() {
+        return type + ":" + path;
+    }
 }
@@ -0,0 +1,504 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent Dependency Manifest
+ *
+ * Records, for every compiled email, the state of the email source and of
+ * every template, fragment and stylesheet it used, along with a reverse index
+ * from each dependency to the emails that use it. An incremental build uses it
+ * to recompile only the emails whose inputs actually changed.
+ *
+ * A file is considered unchanged if its modification time and size match the
+ * manifest; otherwise its content hash is compared, so touching a file without
+ * changing it doesn't trigger a rebuild. References that failed to load are
+ * recorded as missing, so creating the file later makes the email stale.
+ *
+ * The state recorded for each input is the one the render read, taken from
+ * the versions the processor noted before reading. An input that changed
+ * since is recorded as changed, so an edit saved while an email is rendering
+ * is picked up by the next build. Hashes are remembered by modification time
+ * and size, so a file shared by many emails is hashed once.
+ *
+ * All paths are stored absolute and normalized. Instances are thread safe.
+ */
+public class DependencyManifest {
+    private static final Logger LOG = Logger.getLogger(DependencyManifest.class.getName());
+
+    private static final String HEADER = "# EmailTemplateLibrary dependency manifest v1";
+    private static final String EMAIL_RECORD = "E";
+    private static final String DEPENDENCY_RECORD = "D";
+    private static final String SOURCE_TYPE = "Source";
+
+    private final Path file;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>();
+    private final Map<Path, Set<Path>> dependents = new HashMap<>();
+    private final ConcurrentMap<Path, FileState> hashed = new ConcurrentHashMap<>();
+
+    /**
+     * Create an empty manifest
+     *
+     * @param file location the manifest is saved to
+     */
+    public DependencyManifest(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Load a manifest, starting empty if it doesn't exist yet
+     *
+     * @param file manifest location
+     * @return the manifest
+     * @throws IOException reading the manifest
+     */
+    public static DependencyManifest load(Path file) throws IOException {
+        DependencyManifest manifest = new DependencyManifest(file);
+
+        if(!Files.exists(file))
+            return manifest;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, Charsets.UTF_8)) {
+            String line = reader.readLine();
+            if(!HEADER.equals(line)) {
+                LOG.log(Level.WARNING, "Ignoring manifest {0} with unknown format", file);
+                return manifest;
+            }
+
+            Entry entry = null;
+            while((line = reader.readLine()) != null) {
+                if(line.isEmpty())
+                    continue;
+
+                // <record> <type> <modified> <size> <hash> <path>
+                String[] fields = line.split(" ", 6);
+                if(fields.length != 6) {
+                    LOG.log(Level.WARNING, "Ignoring malformed manifest line {0}", line);
+                    continue;
+                }
+
+                try {
+                    FileState state = new FileState(
+                            Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]),
+                            fields[4]);
+                    Path path = Paths.get(fields[5]);
+
+                    if(EMAIL_RECORD.equals(fields[0])) {
+                        entry = new Entry(state);
+                        manifest.entries.put(path, entry);
+                    } else if(DEPENDENCY_RECORD.equals(fields[0]) && entry != null) {
+                        entry.dependencies.put(
+                                new Dependency(path, Dependency.DependencyType.valueOf(fields[1])),
+                                state);
+                    }
+                } catch(IllegalArgumentException ex) {
+                    // Bad numbers, unknown dependency types or invalid paths
+                    LOG.log(Level.WARNING, "Ignoring malformed manifest line {0}", line);
+                }
+            }
+        }
+
+        manifest.entries.forEach(manifest::index);
+
+        return manifest;
+    }
+
+    /**
+     * Save the manifest to its file
+     *
+     * The manifest is written to a temporary file and moved into place so a
+     * crash never leaves a partial manifest behind.
+     *
+     * @throws IOException writing the manifest
+     */
+    public synchronized void save() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, Charsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+
+                for(Map.Entry<Path, Entry> email : entries.entrySet()) {
+                    write(writer, EMAIL_RECORD, SOURCE_TYPE, email.getValue().source, email.getKey());
+
+                    for(Map.Entry<Dependency, FileState> dependency : email.getValue().dependencies.entrySet()) {
+                        write(writer, DEPENDENCY_RECORD,
+                                dependency.getKey().getType().name(),
+                                dependency.getValue(),
+                                dependency.getKey().getPath());
+                    }
+                }
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Record the inputs of a freshly compiled email, as the render read them
+     *
+     * The versions the render noted are compared with the files on disk, so
+     * the processor is expected to read through a {@link FileSystemResourceLoader}.
+     * Inputs read any other way are recorded as changed, and the inputs of
+     * a result that came from an output cache are recorded as they are now.
+     *
+     * @param email email source
+     * @param context context of the render
+     * @throws IOException reading the files to hash them
+     */
+    public void record(Path email, ProcessorContext context) throws IOException {
+        record(email, context.getDependencies(), context::getVersion);
+    }
+
+    /**
+     * Record the dependencies of a freshly compiled email, in their current
+     * state
+     *
+     * @param email email source
+     * @param dependencies dependencies recorded while processing the email
+     * @throws IOException reading the files to hash them
+     */
+    public void record(Path email, Collection<Dependency> dependencies) throws IOException {
+        record(email, dependencies, path -> null);
+    }
+
+    private void record(Path email, Collection<Dependency> dependencies,
+            Function<Path, TemplateResourceLoader.Version> versions) throws IOException {
+        Path key = normalize(email);
+
+        Entry entry = new Entry(state(key, versions.apply(email)));
+        for(Dependency dependency : dependencies) {
+            Path path = normalize(dependency.getPath());
+            entry.dependencies.put(new Dependency(path, dependency.getType()),
+                    state(path, versions.apply(dependency.getPath())));
+        }
+
+        synchronized(this) {
+            unindex(key);
+            entries.put(key, entry);
+            index(key, entry);
+        }
+    }
+
+    /**
+     * Forget an email, e.g. because it failed to compile or was deleted
+     *
+     * @param email email source
+     */
+    public synchronized void remove(Path email) {
+        Path key = normalize(email);
+        unindex(key);
+        entries.remove(key);
+    }
+
+    /**
+     * @return the emails recorded in the manifest
+     */
+    public synchronized Set<Path> getEmails() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * @param email email source
+     * @return the recorded dependencies of an email, empty if unknown
+     */
+    public synchronized Set<Dependency> getDependencies(Path email) {
+        Entry entry = entries.get(normalize(email));
+        return entry == null ?
+                Collections.emptySet() :
+                new HashSet<>(entry.dependencies.keySet());
+    }
+
+    /**
+     * Find the emails affected by a set of changed files
+     *
+     * A changed file affects every email that depends on it, and an email
+     * source affects itself.
+     *
+     * @param changed changed files
+     * @return the emails that need to be recompiled
+     */
+    public synchronized Set<Path> getAffected(Collection<Path> changed) {
+        Set<Path> affected = new HashSet<>();
+
+        for(Path path : changed) {
+            Path key = normalize(path);
+
+            if(entries.containsKey(key))
+                affected.add(key);
+
+            Set<Path> emails = dependents.get(key);
+            if(emails != null)
+                affected.addAll(emails);
+        }
+
+        return affected;
+    }
+
+    /**
+     * Check whether an email needs to be recompiled
+     *
+     * @param email email source
+     * @return true if the email isn't in the manifest or any of its inputs changed
+     */
+    public boolean isStale(Path email) {
+        return isStale(email, new HashMap<>());
+    }
+
+    /**
+     * Select the emails that need to be recompiled
+     *
+     * Each dependency is checked once no matter how many emails share it.
+     *
+     * @param emails candidate email sources
+     * @return the stale emails
+     */
+    public Set<Path> getStale(Collection<Path> emails) {
+        Map<Path, Boolean> checked = new HashMap<>();
+        Set<Path> stale = new HashSet<>();
+
+        for(Path email : emails) {
+            if(isStale(email, checked))
+                stale.add(email);
+        }
+
+        return stale;
+    }
+
+    private boolean isStale(Path email, Map<Path, Boolean> checked) {
+        Path key = normalize(email);
+
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+        }
+
+        if(entry == null || isChanged(key, entry.source, checked))
+            return true;
+
+        for(Map.Entry<Dependency, FileState> dependency : entry.dependencies.entrySet()) {
+            if(isChanged(dependency.getKey().getPath(), dependency.getValue(), checked))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the state of an input, hashing it only if it wasn't already hashed
+     * at its current modification time and size
+     *
+     * @param path normalized path
+     * @param read version the render read, or null to use the current one
+     * @return the state to record
+     * @throws IOException reading the file
+     */
+    private FileState state(Path path, TemplateResourceLoader.Version read) throws IOException {
+        TemplateResourceLoader.Version current = FileState.version(path);
+        if(read != null && !read.equals(current))
+            return FileState.CHANGED;
+
+        FileState known = hashed.get(path);
+        if(known != null && known.is(current))
+            return known;
+
+        FileState state = FileState.of(path, current);
+        if(state != FileState.CHANGED)
+            hashed.put(path, state);
+        return state;
+    }
+
+    private static boolean isChanged(Path path, FileState recorded, Map<Path, Boolean> checked) {
+        Boolean changed = checked.get(path);
+        if(changed == null) {
+            changed = recorded.isChanged(path);
+            checked.put(path, changed);
+        }
+        return changed;
+    }
+
+    private void index(Path email, Entry entry) {
+        for(Dependency dependency : entry.dependencies.keySet())
+            dependents.computeIfAbsent(dependency.getPath(), k -> new HashSet<>()).add(email);
+    }
+
+    private void unindex(Path email) {
+        Entry entry = entries.get(email);
+        if(entry == null)
+            return;
+
+        for(Dependency dependency : entry.dependencies.keySet()) {
+            Set<Path> emails = dependents.get(dependency.getPath());
+            if(emails != null) {
+                emails.remove(email);
+                if(emails.isEmpty())
+                    dependents.remove(dependency.getPath());
+            }
+        }
+    }
+
+    private static void write(BufferedWriter writer, String record, String type, FileState state, Path path) throws IOException {
+        writer.write(record);
+        writer.write(' ');
+        writer.write(type);
+        writer.write(' ');
+        writer.write(Long.toString(state.modified));
+        writer.write(' ');
+        writer.write(Long.toString(state.size));
+        writer.write(' ');
+        writer.write(state.hash);
+        writer.write(' ');
+        writer.write(path.toString());
+        writer.newLine();
+    }
+
+    static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Recorded inputs of an email
+     */
+    private static final class Entry {
+        private final FileState source;
+        private final Map<Dependency, FileState> dependencies = new LinkedHashMap<>();
+
+        Entry(FileState source) {
+            this.source = source;
+        }
+    }
+
+    /**
+     * Modification time, size and content hash of a file
+     */
+    private static final class FileState {
+        private static final String MISSING = "-";
+        private static final String UNKNOWN = "?";
+
+        // Input that changed after it was read, always stale
+        static final FileState CHANGED = new FileState(-1, -1, UNKNOWN);
+
+        private final long modified;
+        private final long size;
+        private final String hash;
+
+        FileState(long modified, long size, String hash) {
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        /**
+         * Hash a file, checking it didn't change while it was hashed
+         *
+         * @param path file
+         * @param version version of the file before hashing
+         * @return the state, CHANGED if the file changed
+         * @throws IOException reading the file
+         */
+        static FileState of(Path path, TemplateResourceLoader.Version version) throws IOException {
+            if(ProcessorContext.MISSING.equals(version))
+                return new FileState(-1, -1, MISSING);
+
+            String hash;
+            try {
+                hash = hash(path);
+            } catch(NoSuchFileException ex) {
+                return CHANGED;
+            }
+
+            if(!version.equals(version(path)))
+                return CHANGED;
+            return new FileState(version.getModified(), version.getSize(), hash);
+        }
+
+        /**
+         * @return the current modification time and size of a file, MISSING
+         * if it doesn't exist
+         */
+        static TemplateResourceLoader.Version version(Path path) throws IOException {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                return new TemplateResourceLoader.Version(attrs.lastModifiedTime().toMillis(), attrs.size());
+            } catch(NoSuchFileException ex) {
+                return ProcessorContext.MISSING;
+            }
+        }
+
+        boolean is(TemplateResourceLoader.Version version) {
+            return modified == version.getModified() && size == version.getSize() && !MISSING.equals(hash);
+        }
+
+        static String hash(Path path) throws IOException {
+            return Hashing.sha256().hashBytes(Files.readAllBytes(path)).toString();
+        }
+
+        boolean isChanged(Path path) {
+            if(UNKNOWN.equals(hash))
+                return true;
+
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if(attrs.lastModifiedTime().toMillis() == modified && attrs.size() == size)
+                    return false;
+
+                return attrs.size() != size || !hash(path).equals(hash);
+            } catch(NoSuchFileException ex) {
+                return !MISSING.equals(hash);
+            } catch(IOException ex) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reusable UTF-8 Writer
+ *
+ * Encodes characters through fixed char and byte buffers straight into an
+ * OutputStream or WritableByteChannel. An instance is opened against a target,
+ * used for one document and then finished, after which the buffers can be
+ * reused for the next document. Malformed input is replaced the same way
+ * String.getBytes does.
+ *
+ * Instances are not thread safe and never close the target.
+ */
+class EncodingWriter extends Writer {
+    static final int BUFFER_SIZE = 8192;
+
+    private final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 3);
+
+    private OutputStream stream;
+    private WritableByteChannel channel;
+    private long count;
+
+    /**
+     * Start writing to an output stream
+     *
+     * @param stream target stream
+     * @return this writer
+     */
+    EncodingWriter open(OutputStream stream) {
+        reset();
+        this.stream = stream;
+        return this;
+    }
+
+    /**
+     * Start writing to a channel
+     *
+     * @param channel target channel
+     * @return this writer
+     */
+    EncodingWriter open(WritableByteChannel channel) {
+        reset();
+        this.channel = channel;
+        return this;
+    }
+
+    /**
+     * Encode any remaining characters, write everything to the target and
+     * release it
+     *
+     * @throws IOException writing to the target
+     */
+    void finish() throws IOException {
+        try {
+            encode(true);
+            while(encoder.flush(bytes).isOverflow())
+                drainBytes();
+            drainBytes();
+
+            if(stream != null)
+                stream.flush();
+        } finally {
+            stream = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the target since it was opened
+     */
+    long getByteCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if(!chars.hasRemaining())
+            encode(false);
+        chars.put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while(len > 0) {
+            if(!chars.hasRemaining())
+                encode(false);
+
+            int n = Math.min(len, chars.remaining());
+            chars.put(cbuf, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while(len > 0) {
+            if(!chars.hasRemaining())
+                encode(false);
+
+            int n = Math.min(len, chars.remaining());
+            str.getChars(off, off + n, chars.array(), chars.position());
+            chars.position(chars.position() + n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) throws IOException {
+        // Writer's default implementation copies through subSequence().toString()
+        if(csq instanceof String) {
+            write((String) csq, start, end - start);
+        } else {
+            for(int i = start; i < end; i++)
+                write(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        encode(false);
+        drainBytes();
+
+        if(stream != null)
+            stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private void reset() {
+        encoder.reset();
+        chars.clear();
+        bytes.clear();
+        count = 0;
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+
+        while(true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if(result.isOverflow())
+                drainBytes();
+            else if(result.isUnderflow())
+                break;
+            else
+                result.throwException();
+        }
+
+        // Keep any trailing high surrogate for the next call
+        chars.compact();
+    }
+
+    private void drainBytes() throws IOException {
+        bytes.flip();
+        count += bytes.remaining();
+
+        if(channel != null) {
+            while(bytes.hasRemaining())
+                channel.write(bytes);
+        } else if(stream != null) {
+            stream.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
+
+        bytes.clear();
+    }
+}
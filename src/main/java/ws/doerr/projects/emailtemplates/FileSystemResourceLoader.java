@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Filesystem Resource Loader
+ *
+ * Reads resources from the filesystem the paths belong to. Files at or above
+ * a size threshold are memory mapped rather than copied through a read
+ * buffer. The version of a file is its modification time and size.
+ */
+public class FileSystemResourceLoader implements TemplateResourceLoader {
+    /**
+     * Default size in bytes from which files are memory mapped
+     */
+    public static final long DEFAULT_MAP_THRESHOLD = 256 * 1024;
+
+    private final long mapThreshold;
+
+    /**
+     * Create a loader with the default mapping threshold
+     */
+    public FileSystemResourceLoader() {
+        this(DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * Create a loader
+     *
+     * @param mapThreshold size in bytes from which files are memory mapped,
+     * Long.MAX_VALUE to never map
+     */
+    public FileSystemResourceLoader(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
+
+    @Override
+    public InputStream open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if(isMapped(channel.size())) {
+                try {
+                    return new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                } finally {
+                    channel.close();
+                }
+            }
+
+            // The stream closes the channel
+            return Channels.newInputStream(channel);
+        } catch(IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public String read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(isMapped(size))
+                return Charsets.UTF_8.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)).toString();
+
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("Resource too large: " + path);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer) < 0)
+                    break;
+            }
+            buffer.flip();
+
+            return Charsets.UTF_8.decode(buffer).toString();
+        }
+    }
+
+    @Override
+    public Version getVersion(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new Version(attrs.lastModifiedTime().toMillis(), attrs.size());
+    }
+
+    /**
+     * Check whether a file is large enough to map
+     *
+     * A mapping stays valid after its channel is closed and is released once
+     * the buffer is garbage collected.
+     *
+     * @param size file size
+     * @return true if the file should be mapped
+     */
+    private boolean isMapped(long size) {
+        return size >= mapThreshold && size <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * InputStream over a byte buffer
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len == 0)
+                return 0;
+            if(!buffer.hasRemaining())
+                return -1;
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
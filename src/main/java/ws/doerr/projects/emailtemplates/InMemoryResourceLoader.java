@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * In-Memory Resource Loader
+ *
+ * Serves resources from memory, so renders do no I/O at all. Resources are
+ * added individually or preloaded from a directory tree, and can be replaced
+ * at any time; each put gets a new version so cached parses of the old
+ * content are no longer used.
+ *
+ * Paths are made absolute and normalized, the same way for puts and reads.
+ */
+public class InMemoryResourceLoader implements TemplateResourceLoader {
+    private final ConcurrentMap<Path, Resource> resources = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+
+    /**
+     * Add or replace a resource
+     *
+     * @param path resource path
+     * @param content resource content, which must not be modified afterwards
+     */
+    public void put(Path path, byte[] content) {
+        resources.put(key(path), new Resource(content, versions.incrementAndGet()));
+    }
+
+    /**
+     * Add or replace a text resource
+     *
+     * @param path resource path
+     * @param content resource content, stored as UTF-8
+     */
+    public void put(Path path, String content) {
+        put(path, content.getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * @param path resource path
+     * @return true if the resource existed
+     */
+    public boolean remove(Path path) {
+        return resources.remove(key(path)) != null;
+    }
+
+    /**
+     * @return the paths of every resource held
+     */
+    public Set<Path> getPaths() {
+        return new HashSet<>(resources.keySet());
+    }
+
+    /**
+     * Load every file under a directory, each under its own path
+     *
+     * @param directory root of the tree to load
+     * @return the number of files loaded
+     * @throws IOException reading the tree
+     */
+    public int loadAll(Path directory) throws IOException {
+        int count = 0;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for(Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                put(file, Files.readAllBytes(file));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public InputStream open(Path path) throws IOException {
+        return new ByteArrayInputStream(get(path).content);
+    }
+
+    @Override
+    public String read(Path path) throws IOException {
+        return new String(get(path).content, Charsets.UTF_8);
+    }
+
+    @Override
+    public Version getVersion(Path path) throws IOException {
+        return get(path).version;
+    }
+
+    private Resource get(Path path) throws NoSuchFileException {
+        Resource resource = resources.get(key(path));
+        if(resource == null)
+            throw new NoSuchFileException(path.toString());
+        return resource;
+    }
+
+    private static Path key(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Content and version of a resource
+     */
+    private static final class Resource {
+        private final byte[] content;
+        private final Version version;
+
+        Resource(byte[] content, long version) {
+            this.content = content;
+            this.version = new Version(version, content.length);
+        }
+    }
+}
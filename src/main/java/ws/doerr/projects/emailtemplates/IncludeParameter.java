@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+/**
+ * Include Parameter
+ *
+ * Value of a parameter passed to an imported fragment. The content of the
+ * parameter element is kept as nodes and copied to each place the parameter is
+ * used, so it never needs to be parsed again. The html is only serialized when
+ * the parameter is used as an attribute value or compared.
+ *
+ * The nodes are never modified after the parameter is created.
+ */
+final class IncludeParameter {
+    private final Element element;
+    private String html;
+
+    /**
+     * Take over a parameter element
+     *
+     * The element is moved out of its document into a holder sharing the
+     * document's output settings, so the serialized html is the same as if
+     * it had been serialized in place.
+     *
+     * @param parameter parameter element from an import statement
+     */
+    IncludeParameter(Element parameter) {
+        Document holder = new Document(parameter.baseUri());
+        Document owner = parameter.ownerDocument();
+        if(owner != null)
+            holder.outputSettings(owner.outputSettings());
+
+        holder.appendChild(parameter);
+        this.element = parameter;
+    }
+
+    /**
+     * @return a copy of the parameter content
+     */
+    List<Node> copyNodes() {
+        List<Node> nodes = new ArrayList<>(element.childNodeSize());
+        for(Node node : element.childNodes())
+            nodes.add(node.clone());
+        return nodes;
+    }
+
+    /**
+     * @return the parameter content serialized as html
+     */
+    String getHtml() {
+        if(html == null)
+            html = element.html();
+        return html;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof IncludeParameter && getHtml().equals(((IncludeParameter) obj).getHtml());
+    }
+
+    @Override
+    public int hashCode() {
+        return getHtml().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getHtml();
+    }
+}
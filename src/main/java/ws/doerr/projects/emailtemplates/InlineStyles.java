@@ -0,0 +1,81 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.jsoup.nodes.Element;
+
+/**
+ * Computed Inline Styles
+ *
+ * The compacted style of every element matched by an inline stylesheet,
+ * kept beside the document instead of written into it. The minifier emits
+ * each style in place of the element's style attribute, and drops its class
+ * attribute, while it serializes the element, so the document is never
+ * rewritten. Elements with the same style share a single string.
+ *
+ * Instances are not thread safe and hold on to the document's elements, so
+ * they should be dropped once the document is written.
+ */
+final class InlineStyles {
+    static final InlineStyles EMPTY = new InlineStyles(Collections.emptyMap());
+
+    private final Map<Element, String> styles;
+
+    InlineStyles() {
+        this(new IdentityHashMap<>());
+    }
+
+    private InlineStyles(Map<Element, String> styles) {
+        this.styles = styles;
+    }
+
+    void put(Element element, String style) {
+        styles.put(element, style);
+    }
+
+    /**
+     * @param element element to look up
+     * @return the computed style of the element, or null if it isn't styled
+     */
+    String get(Element element) {
+        return styles.get(element);
+    }
+
+    boolean isEmpty() {
+        return styles.isEmpty();
+    }
+
+    /**
+     * Write the styles into the document, the way the minifier emits them
+     */
+    void apply() {
+        for(Map.Entry<Element, String> entry : styles.entrySet()) {
+            entry.getKey().attr("style", entry.getValue());
+            entry.getKey().removeAttr("class");
+        }
+    }
+}
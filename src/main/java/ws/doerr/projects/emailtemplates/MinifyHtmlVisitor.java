@@ -23,6 +23,10 @@
  */
 package ws.doerr.projects.emailtemplates;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import org.jsoup.nodes.Attribute;
 import org.jsoup.nodes.Comment;
 import org.jsoup.nodes.DocumentType;
 import org.jsoup.nodes.Element;
@@ -32,66 +36,121 @@ import org.jsoup.select.NodeVisitor;
 
 /**
  * Jsoup Node Visitor to extract minified HTML
+ *
+ * Output is written straight to the supplied Appendable. Whitespace is
+ * collapsed and attributes are escaped by hand, in a single pass, without
+ * regular expressions or intermediate strings. The output matches what
+ * jsoup's own attribute serialization produces for html documents.
+ *
+ * IOExceptions from the output are rethrown as UncheckedIOException since
+ * the visitor interface doesn't allow checked exceptions.
  */
 class MinifyHtmlVisitor implements NodeVisitor {
-    private final StringBuilder sb = new StringBuilder();
+    // Attributes jsoup collapses to just the key (kept sorted for binarySearch)
+    private static final String[] BOOLEAN_ATTRIBUTES = {
+            "allowfullscreen", "async", "autofocus", "checked", "compact", "declare", "default", "defer", "disabled",
+            "formnovalidate", "hidden", "inert", "ismap", "itemscope", "multiple", "muted", "nohref", "noresize",
+            "noshade", "novalidate", "nowrap", "open", "readonly", "required", "reversed", "seamless", "selected",
+            "sortable", "truespeed", "typemustmatch"
+    };
+
+    private final Appendable out;
     private final boolean removeComments;
+    private final InlineStyles styles;
 
     MinifyHtmlVisitor() {
         this(false);
     }
 
     MinifyHtmlVisitor(boolean removeComments) {
+        this(new StringBuilder(), removeComments);
+    }
+
+    MinifyHtmlVisitor(Appendable out, boolean removeComments) {
+        this(out, removeComments, InlineStyles.EMPTY);
+    }
+
+    /**
+     * @param out destination for the html
+     * @param removeComments if true, drop html comments
+     * @param styles computed inline styles, written in place of the style
+     * attribute of each styled element, whose class attribute is dropped
+     */
+    MinifyHtmlVisitor(Appendable out, boolean removeComments, InlineStyles styles) {
+        this.out = out;
         this.removeComments = removeComments;
+        this.styles = styles;
     }
 
+    /**
+     * @return the html written so far when the output is a StringBuilder
+     */
     String getHtml() {
-        return sb.toString();
+        return out.toString();
     }
 
     @Override
     public void head(Node node, int i) {
-        if(node instanceof DocumentType) {
-            DocumentType dt = (DocumentType) node;
-            sb.append("<!DOCTYPE html PUBLIC");
+        try {
+            if(node instanceof DocumentType) {
+                DocumentType dt = (DocumentType) node;
+                out.append("<!DOCTYPE html PUBLIC");
 
-            if(dt.hasAttr("publicId"))
-                sb.append(' ').append(dt.attr("publicId"));
+                if(dt.hasAttr("publicId"))
+                    out.append(' ').append(dt.attr("publicId"));
 
-            if(dt.hasAttr("systemId"))
-                sb.append(' ').append(dt.attr("systemId"));
+                if(dt.hasAttr("systemId"))
+                    out.append(' ').append(dt.attr("systemId"));
 
-            sb.append('>');
-        } else if(node instanceof Element) {
-            Element e = (Element) node;
+                out.append('>');
+            } else if(node instanceof Element) {
+                Element e = (Element) node;
 
-            if("#root".equals(e.tagName()))
-                return;
+                if("#root".equals(e.tagName()))
+                    return;
 
-            sb.append('<')
-                .append(e.tagName());
+                out.append('<')
+                    .append(e.tagName());
 
-            sb.append(e.attributes().html());
+                String style = styles.get(e);
+                if(style == null) {
+                    for(Attribute attribute : e.attributes())
+                        appendAttribute(attribute.getKey(), attribute.getValue());
+                } else {
+                    appendStyledAttributes(e, style);
+                }
 
-            if(e.childNodes().isEmpty() && e.tag().isSelfClosing()) {
                 if(e.tag().isEmpty())
-                    sb.append('>');
+                    out.append('>');
+                else if(e.childNodeSize() == 0 && e.tag().isSelfClosing())
+                    out.append(" />");
                 else
-                    sb.append(" />");
-            } else
-                sb.append('>');
-        } else if(node instanceof TextNode) {
-            TextNode tn = (TextNode) node;
-
-            sb.append(tn.getWholeText().replaceAll("\\s+", " "));
-        } else if(node instanceof Comment) {
-            if(!removeComments) {
-                Comment c = (Comment) node;
-
-                sb.append("<!--")
-                    .append(c.getData().replaceAll("\\s+", " "))
-                    .append("-->");
+                    out.append('>');
+            } else if(node instanceof TextNode) {
+                TextNode tn = (TextNode) node;
+
+                // Void elements can't have content, e.g. whitespace left
+                // behind by attribute parameters
+                Node parent = tn.parent();
+                if(parent instanceof Element && ((Element) parent).tag().isEmpty())
+                    return;
+
+                // Adjacent text nodes collapse as if they were one
+                Node previous = tn.previousSibling();
+                boolean merge = previous instanceof TextNode && endsWithWhitespace(((TextNode) previous).getWholeText());
+
+                appendCollapsed(tn.getWholeText(), merge);
+            } else if(node instanceof Comment) {
+                if(!removeComments) {
+                    Comment c = (Comment) node;
+
+                    out.append("<!--");
+                    appendCollapsed(c.getData(), false);
+                    out.append("-->");
+                }
             }
+        } catch(IOException ex) {
+            throw new UncheckedIOException(ex);
         }
     }
 
@@ -103,8 +162,122 @@ class MinifyHtmlVisitor implements NodeVisitor {
             if("#root".equals(e.tagName()))
                 return;
 
-            if(!(e.childNodes().isEmpty() && e.tag().isSelfClosing()))
-                sb.append("</").append(e.tagName()).append('>');
+            try {
+                if(!e.tag().isEmpty() && !(e.childNodeSize() == 0 && e.tag().isSelfClosing()))
+                    out.append("</").append(e.tagName()).append('>');
+            } catch(IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
         }
     }
+
+    /**
+     * Write the attributes of a styled element, in the same order setting
+     * the style attribute and removing the class attribute would leave them
+     *
+     * @param e styled element
+     * @param style computed style
+     * @throws IOException writing to the output
+     */
+    private void appendStyledAttributes(Element e, String style) throws IOException {
+        boolean written = false;
+
+        for(Attribute attribute : e.attributes()) {
+            String key = attribute.getKey();
+            if("class".equals(key))
+                continue;
+
+            if("style".equals(key)) {
+                appendAttribute(key, style);
+                written = true;
+            } else {
+                appendAttribute(key, attribute.getValue());
+            }
+        }
+
+        if(!written)
+            appendAttribute("style", style);
+    }
+
+    /**
+     * Write an attribute, escaped for an html attribute value
+     *
+     * @param key attribute name
+     * @param value attribute value
+     * @throws IOException writing to the output
+     */
+    void appendAttribute(String key, String value) throws IOException {
+        out.append(' ').append(key);
+
+        if(("".equals(value) || value.equalsIgnoreCase(key)) &&
+                Arrays.binarySearch(BOOLEAN_ATTRIBUTES, key) >= 0)
+            return;
+
+        out.append("=\"");
+
+        int start = 0;
+        for(int i = 0; i < value.length(); i++) {
+            String escaped;
+            switch(value.charAt(i)) {
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '"':
+                    escaped = "&quot;";
+                    break;
+                case 0xA0:
+                    escaped = "&nbsp;";
+                    break;
+                default:
+                    continue;
+            }
+
+            out.append(value, start, i).append(escaped);
+            start = i + 1;
+        }
+
+        out.append(value, start, value.length()).append('"');
+    }
+
+    /**
+     * Write text with every run of whitespace collapsed to a single space
+     *
+     * @param text text to write
+     * @param skipLeading if true, drop leading whitespace, as a space was
+     * already written for it
+     * @throws IOException writing to the output
+     */
+    private void appendCollapsed(String text, boolean skipLeading) throws IOException {
+        int start = 0;
+        int length = text.length();
+
+        if(skipLeading) {
+            while(start < length && isWhitespace(text.charAt(start)))
+                start++;
+        }
+
+        for(int i = start; i < length; i++) {
+            if(isWhitespace(text.charAt(i))) {
+                out.append(text, start, i).append(' ');
+
+                while(i + 1 < length && isWhitespace(text.charAt(i + 1)))
+                    i++;
+
+                start = i + 1;
+            }
+        }
+
+        out.append(text, start, length);
+    }
+
+    private static boolean endsWithWhitespace(String text) {
+        return !text.isEmpty() && isWhitespace(text.charAt(text.length() - 1));
+    }
+
+    /**
+     * Same characters matched by \s in a regular expression
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
+    }
 }
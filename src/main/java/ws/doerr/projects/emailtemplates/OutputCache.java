@@ -0,0 +1,596 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent Output Cache
+ *
+ * Stores the result of processing an email in a directory so identical
+ * inputs are never processed twice, even across builds and restarts.
+ *
+ * Entries are content addressed. The dependencies of an email aren't known
+ * until it has been processed, so a lookup takes two steps: a hash of the
+ * processor configuration and the source selects the dependency list
+ * recorded by the last build, then the content of each of those
+ * dependencies is folded in to find the stored output. A changed template,
+ * fragment or stylesheet is simply a different key. The processor records
+ * references that fail to load as dependencies too, and they are hashed as
+ * absent, so creating a missing file later also changes the key.
+ *
+ * Sources and dependencies below the root directory are keyed by their path
+ * relative to it, so checkouts of the same tree in different places, such as
+ * the workspaces of separate CI runs, share entries. The dependencies of a
+ * hit are rebuilt in the form the processor gives them for the source looked
+ * up, absolute for an absolute source and relative for a relative one.
+ *
+ * Files are written to a temporary file and moved into place, so any number
+ * of processors, in this or other processes, can share a directory. Hits
+ * refresh the modification time of the files they use and the oldest files
+ * are deleted once the directory grows past its maximum size.
+ */
+public class OutputCache {
+    private static final Logger LOG = Logger.getLogger(OutputCache.class.getName());
+
+    /**
+     * Default maximum size of the cache directory in bytes
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE = 256L * 1024 * 1024;
+
+    // Bump whenever the entry format or the processing output changes
+    private static final int FORMAT = 5;
+    private static final int DEPENDENCIES_MAGIC = 0x45544c44;
+    private static final int ENTRY_MAGIC = 0x45544c45;
+
+    private static final String DEPENDENCIES_SUFFIX = ".deps";
+    private static final String ENTRY_SUFFIX = ".out";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String MISSING = "-";
+
+    // Temporary files older than this were left behind by a crashed writer
+    private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final String VERSION = version();
+
+    private final Path directory;
+    private final long maximumSize;
+    private final Path root;
+    private final AtomicLong size = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a cache with the default maximum size
+     *
+     * @param directory cache directory, created if it doesn't exist
+     * @throws IOException creating or reading the directory
+     */
+    public OutputCache(Path directory) throws IOException {
+        this(directory, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Create a cache keyed relative to the working directory
+     *
+     * @param directory cache directory, created if it doesn't exist
+     * @param maximumSize size in bytes the directory is trimmed back to
+     * @throws IOException creating or reading the directory
+     */
+    public OutputCache(Path directory, long maximumSize) throws IOException {
+        this(directory, maximumSize, Paths.get(""));
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param directory cache directory, created if it doesn't exist
+     * @param maximumSize size in bytes the directory is trimmed back to
+     * @param root directory paths are keyed relative to, usually the root of
+     * the checkout holding the emails
+     * @throws IOException creating or reading the directory
+     */
+    public OutputCache(Path directory, long maximumSize, Path root) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maximumSize = maximumSize;
+        this.root = DependencyManifest.normalize(root);
+
+        long total = 0;
+        for(Path file : list())
+            total += sizeOf(file);
+        size.set(total);
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the directory paths are keyed relative to
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return approximate size of the cache directory in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return number of lookups that found a stored output
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups that had to process the email
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of files deleted to keep the cache within its size
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Delete every entry in the cache
+     *
+     * @throws IOException listing the directory
+     */
+    public synchronized void clear() throws IOException {
+        for(Path file : list())
+            delete(file);
+        size.set(0);
+    }
+
+    /**
+     * Start a lookup for an email
+     *
+     * @param source email source
+     * @param configuration fingerprint of the processor configuration
+     * @param loader loader the source and its dependencies are read through
+     * @return the lookup
+     * @throws IOException reading the source or its dependencies
+     */
+    Lookup lookup(Path source, HashCode configuration, TemplateResourceLoader loader) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putInt(FORMAT);
+        putString(hasher, VERSION);
+        hasher.putBytes(configuration.asBytes());
+        putString(hasher, name(source));
+        putContent(hasher, loader, source);
+
+        // The processor resolves references against the source's directory
+        Path base = source.getParent() == null ? Paths.get(".") : source.getParent();
+        return new Lookup(hasher.hash().toString(), base, loader);
+    }
+
+    /**
+     * A single lookup, which stores the output if it misses
+     */
+    final class Lookup {
+        private final String sourceKey;
+        private final Path base;
+        private final TemplateResourceLoader loader;
+
+        private Lookup(String sourceKey, Path base, TemplateResourceLoader loader) {
+            this.sourceKey = sourceKey;
+            this.base = base;
+            this.loader = loader;
+        }
+
+        /**
+         * Load the stored output into a context
+         *
+         * @param context empty context to fill
+         * @return true if the output was found
+         */
+        boolean load(ProcessorContext context) {
+            try {
+                Path dependencies = directory.resolve(sourceKey + DEPENDENCIES_SUFFIX);
+                Path entry = directory.resolve(entryKey(readDependencies(dependencies, base)) + ENTRY_SUFFIX);
+                readEntry(entry, base, context);
+
+                // Refresh both files so they are the last to be evicted
+                FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+                Files.setLastModifiedTime(dependencies, now);
+                Files.setLastModifiedTime(entry, now);
+
+                context.setCached(true);
+                hits.increment();
+                return true;
+            } catch(NoSuchFileException ex) {
+                // Not cached, or evicted since
+            } catch(IOException ex) {
+                LOG.log(Level.WARNING, "Ignoring unreadable cache entry for " + sourceKey, ex);
+            }
+
+            misses.increment();
+            return false;
+        }
+
+        /**
+         * Store the output of a successful render
+         *
+         * A failure to store is logged, it never fails the render.
+         *
+         * @param context context of the render
+         */
+        void store(ProcessorContext context) {
+            try {
+                List<Dependency> dependencies = new ArrayList<>(context.getDependencies());
+                dependencies.sort(Comparator.comparing(dependency -> key(dependency)));
+
+                write(sourceKey + DEPENDENCIES_SUFFIX, out -> {
+                    out.writeInt(DEPENDENCIES_MAGIC);
+                    out.writeInt(dependencies.size());
+                    for(Dependency dependency : dependencies)
+                        writeDependency(out, dependency, base);
+                });
+
+                write(entryKey(dependencies) + ENTRY_SUFFIX, out -> {
+                    out.writeInt(ENTRY_MAGIC);
+                    writeString(out, context.getHtml());
+                    out.writeBoolean(context.getText() != null);
+                    if(context.getText() != null)
+                        writeString(out, context.getText());
+                    out.writeBoolean(context.getTitle() != null);
+                    if(context.getTitle() != null)
+                        writeString(out, context.getTitle());
+
+                    out.writeInt(context.getMeta().size());
+                    for(Map.Entry<String, String> meta : context.getMeta().entrySet()) {
+                        writeString(out, meta.getKey());
+                        writeString(out, meta.getValue());
+                    }
+
+                    out.writeInt(dependencies.size());
+                    for(Dependency dependency : dependencies)
+                        writeDependency(out, dependency, base);
+
+                    out.writeLong(context.getBytesIn());
+                    out.writeLong(context.getBytesOut());
+                    out.writeInt(context.getIncludeDepth());
+                    out.writeLong(context.getInlineStyleBytes() + context.getInlineStyleSavedBytes());
+                    out.writeLong(context.getInlineStyleBytes());
+                });
+            } catch(IOException ex) {
+                LOG.log(Level.WARNING, "Unable to cache the output for " + sourceKey, ex);
+            }
+
+            if(size.get() > maximumSize)
+                trim();
+        }
+
+        private String entryKey(List<Dependency> dependencies) throws IOException {
+            Hasher hasher = Hashing.sha256().newHasher();
+            putString(hasher, sourceKey);
+
+            for(Dependency dependency : dependencies) {
+                putString(hasher, key(dependency));
+                try {
+                    putContent(hasher, loader, dependency.getPath());
+                } catch(NoSuchFileException ex) {
+                    putString(hasher, MISSING);
+                }
+            }
+
+            return hasher.hash().toString();
+        }
+    }
+
+    /**
+     * @return the name a path is keyed by, relative to the root if it's
+     * below it, with '/' separators
+     */
+    private String name(Path path) {
+        Path normalized = DependencyManifest.normalize(path);
+        if(!normalized.startsWith(root))
+            return normalized.toString();
+
+        StringBuilder name = new StringBuilder();
+        for(Path element : root.relativize(normalized)) {
+            if(name.length() > 0)
+                name.append('/');
+            name.append(element);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Write a dependency, as written below the directory of the source when
+     * it is, so it can be rebuilt in the same form for another lookup
+     */
+    private void writeDependency(DataOutputStream out, Dependency dependency, Path base) throws IOException {
+        writeString(out, dependency.getType().name());
+
+        Path path = dependency.getPath();
+        boolean below = path.startsWith(base) && path.getNameCount() > base.getNameCount();
+        out.writeBoolean(below);
+        if(!below) {
+            writeString(out, name(path));
+            return;
+        }
+
+        StringBuilder name = new StringBuilder();
+        for(Path element : path.subpath(base.getNameCount(), path.getNameCount())) {
+            if(name.length() > 0)
+                name.append('/');
+            name.append(element);
+        }
+        writeString(out, name.toString());
+    }
+
+    private String key(Dependency dependency) {
+        return dependency.getType().name() + ":" + name(dependency.getPath());
+    }
+
+    private List<Dependency> readDependencies(Path file, Path base) throws IOException {
+        try (DataInputStream in = open(file)) {
+            if(in.readInt() != DEPENDENCIES_MAGIC)
+                throw new IOException("Not a dependency list: " + file);
+
+            int count = in.readInt();
+            List<Dependency> dependencies = new ArrayList<>(count);
+            for(int i = 0; i < count; i++)
+                dependencies.add(readDependency(in, base));
+            return dependencies;
+        }
+    }
+
+    private void readEntry(Path file, Path base, ProcessorContext context) throws IOException {
+        try (DataInputStream in = open(file)) {
+            if(in.readInt() != ENTRY_MAGIC)
+                throw new IOException("Not a cache entry: " + file);
+
+            context.setHtml(readString(in));
+            if(in.readBoolean())
+                context.setText(readString(in));
+            if(in.readBoolean())
+                context.setTitle(readString(in));
+
+            int count = in.readInt();
+            for(int i = 0; i < count; i++)
+                context.addMeta(readString(in), readString(in));
+
+            count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                Dependency dependency = readDependency(in, base);
+                context.addDependency(dependency.getPath(), dependency.getType());
+            }
+
+            context.setBytesIn(in.readLong());
+            context.setBytesOut(in.readLong());
+            context.setIncludeDepth(in.readInt());
+
+            long rawBytes = in.readLong();
+            context.addInlineStyle(rawBytes, in.readLong());
+        }
+    }
+
+    /**
+     * Read a dependency, rebuilding its path in the form the processor gives
+     * it for the source being looked up: relative to the source's directory
+     * if it was written below it, otherwise resolved against the root
+     */
+    private Dependency readDependency(DataInputStream in, Path base) throws IOException {
+        Dependency.DependencyType type;
+        try {
+            type = Dependency.DependencyType.valueOf(readString(in));
+        } catch(IllegalArgumentException ex) {
+            throw new IOException("Unknown dependency type", ex);
+        }
+
+        boolean below = in.readBoolean();
+        Path path = Paths.get(readString(in));
+        return new Dependency(below ? base.resolve(path) : root.resolve(path), type);
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    }
+
+    @FunctionalInterface
+    private interface Content {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Write a file atomically
+     */
+    private void write(String name, Content content) throws IOException {
+        Path temp = Files.createTempFile(directory, name, TEMP_SUFFIX);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                content.write(out);
+            }
+
+            Path file = directory.resolve(name);
+            long previous = sizeOf(file);
+            long written = Files.size(temp);
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            size.addAndGet(written - previous);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache is back to three
+     * quarters of its maximum size
+     *
+     * The directory is rescanned, so files written by other processes are
+     * accounted for.
+     */
+    private synchronized void trim() {
+        if(size.get() <= maximumSize)
+            return;
+
+        Map<Path, BasicFileAttributes> files = new HashMap<>();
+        long total = 0;
+        long staleTemp = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+
+        try {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for(Path file : stream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    } catch(NoSuchFileException ex) {
+                        continue;
+                    }
+
+                    if(!attrs.isRegularFile())
+                        continue;
+
+                    if(file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                        if(attrs.lastModifiedTime().toMillis() < staleTemp)
+                            delete(file);
+                        continue;
+                    }
+
+                    files.put(file, attrs);
+                    total += attrs.size();
+                }
+            }
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, "Unable to trim the output cache " + directory, ex);
+            return;
+        }
+
+        List<Path> oldest = new ArrayList<>(files.keySet());
+        oldest.sort(Comparator.comparing(file -> files.get(file).lastModifiedTime()));
+
+        long target = maximumSize / 4 * 3;
+        for(Path file : oldest) {
+            if(total <= target)
+                break;
+
+            if(delete(file)) {
+                total -= files.get(file).size();
+                evictions.increment();
+            }
+        }
+
+        size.set(total);
+    }
+
+    private List<Path> list() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for(Path file : stream) {
+                if(Files.isRegularFile(file))
+                    files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch(IOException ex) {
+            return 0;
+        }
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch(IOException ex) {
+            LOG.log(Level.FINE, "Unable to delete " + file, ex);
+            return false;
+        }
+    }
+
+    private static void putContent(Hasher hasher, TemplateResourceLoader loader, Path path) throws IOException {
+        try (InputStream input = loader.open(path)) {
+            ByteStreams.copy(input, Funnels.asOutputStream(hasher));
+        }
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        hasher.putInt(value.length()).putString(value, Charsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static String version() {
+        String version = OutputCache.class.getPackage().getImplementationVersion();
+        return version == null ? "DEVELOPMENT" : version;
+    }
+}
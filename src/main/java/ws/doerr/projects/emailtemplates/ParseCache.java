@@ -0,0 +1,355 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.parser.Parser;
+
+/**
+ * Cache of parsed template resources
+ *
+ * Holds parsed templates and fragments along with raw stylesheet text so that
+ * resources shared by many emails are only read and parsed once. Entries are
+ * keyed by the loader, the normalized path and the version the loader reports
+ * for it, so a changed resource is simply a new key and the stale entry ages
+ * out of the cache.
+ *
+ * Parsed inline stylesheets are keyed by a hash of their content, so emails
+ * that end up with the same inline css share a single parse. Conditional
+ * comments are keyed by their text, so a comment repeated in many includes
+ * is only split and parsed once. The metadata scanned from the head of an
+ * email is keyed the same way as documents.
+ *
+ * Cached documents are never handed out directly; callers always receive a
+ * deep copy they are free to mutate.
+ *
+ * A single instance may be shared by any number of processors and threads.
+ */
+public class ParseCache {
+    /**
+     * Default maximum number of entries held per resource type
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Cache<Key, Document> documents;
+    private final Cache<Key, String> stylesheets;
+    private final Cache<HashCode, StyleInliner> inliners;
+    private final Cache<HashCode, StylePruner> pruners;
+    private final Cache<String, ConditionalComment> comments;
+    private final Cache<Key, TemplateMetadata> metadata;
+
+    /**
+     * Create a cache with the default size
+     */
+    public ParseCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Create a cache with a specific size
+     *
+     * @param maximumSize maximum number of entries held per resource type
+     */
+    public ParseCache(long maximumSize) {
+        documents = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+
+        stylesheets = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+
+        inliners = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+
+        pruners = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+
+        comments = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+
+        metadata = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get a parsed copy of a template or fragment
+     *
+     * @param path path of the file to parse
+     * @param parser parser to use if the file isn't cached
+     * @param loader loader the file is read from
+     * @param context context noting the version of the file used
+     * @return a copy of the parsed document
+     * @throws IOException if the file can't be read
+     */
+    Document getDocument(Path path, Parser parser, TemplateResourceLoader loader, ProcessorContext context)
+            throws IOException {
+        return get(documents, key(path, loader, context), () -> {
+            try (InputStream input = loader.open(path)) {
+                return Jsoup.parse(input, Charsets.UTF_8.name(), "", parser);
+            }
+        }).clone();
+    }
+
+    /**
+     * Get the text of a stylesheet
+     *
+     * @param path path of the stylesheet
+     * @param loader loader the file is read from
+     * @param context context noting the version of the file used
+     * @return the stylesheet content
+     * @throws IOException if the file can't be read
+     */
+    String getStylesheet(Path path, TemplateResourceLoader loader, ProcessorContext context) throws IOException {
+        return get(stylesheets, key(path, loader, context), () -> loader.read(path));
+    }
+
+    /**
+     * Get the parsed form of an inline stylesheet
+     *
+     * @param css stylesheet text
+     * @return the parsed stylesheet, shared by all callers
+     * @throws IOException exception parsing the stylesheet
+     */
+    StyleInliner getInliner(String css) throws IOException {
+        HashCode hash = Hashing.murmur3_128().hashString(css, Charsets.UTF_8);
+        return get(inliners, hash, () -> StyleInliner.parse(css));
+    }
+
+    /**
+     * Get the parsed form of a retained stylesheet to prune
+     *
+     * @param css stylesheet text
+     * @return the parsed stylesheet, shared by all callers
+     * @throws IOException exception parsing the stylesheet
+     */
+    StylePruner getPruner(String css) throws IOException {
+        HashCode hash = Hashing.murmur3_128().hashString(css, Charsets.UTF_8);
+        return get(pruners, hash, () -> StylePruner.parse(css));
+    }
+
+    /**
+     * Get the split and parsed form of a comment
+     *
+     * @param comment comment data
+     * @param parser parser to use if the comment isn't cached
+     * @return the parsed comment, shared by all callers
+     * @throws IOException exception parsing the comment
+     */
+    ConditionalComment getConditionalComment(String comment, Parser parser) throws IOException {
+        return get(comments, comment, () -> ConditionalComment.parse(comment, parser));
+    }
+
+    /**
+     * Get the metadata of an email
+     *
+     * @param path path of the email source
+     * @param loader loader the file is read from
+     * @return the metadata scanned from the head of the email
+     * @throws IOException if the file can't be read
+     */
+    TemplateMetadata getMetadata(Path path, TemplateResourceLoader loader) throws IOException {
+        return get(metadata, key(path, loader), () -> {
+            try (InputStream input = loader.open(path)) {
+                return TemplateMetadata.scan(input);
+            }
+        });
+    }
+
+    /**
+     * @return statistics for the parsed document cache
+     */
+    public CacheStats getDocumentStats() {
+        return documents.stats();
+    }
+
+    /**
+     * @return statistics for the stylesheet cache
+     */
+    public CacheStats getStylesheetStats() {
+        return stylesheets.stats();
+    }
+
+    /**
+     * @return statistics for the parsed inline stylesheet cache
+     */
+    public CacheStats getInlineStylesheetStats() {
+        return inliners.stats();
+    }
+
+    /**
+     * @return statistics for the parsed pruned stylesheet cache
+     */
+    public CacheStats getPrunedStylesheetStats() {
+        return pruners.stats();
+    }
+
+    /**
+     * @return statistics for the parsed conditional comment cache
+     */
+    public CacheStats getConditionalCommentStats() {
+        return comments.stats();
+    }
+
+    /**
+     * @return statistics for the metadata cache
+     */
+    public CacheStats getMetadataStats() {
+        return metadata.stats();
+    }
+
+    /**
+     * @return combined statistics for all cached resources
+     */
+    public CacheStats getStats() {
+        return documents.stats().plus(stylesheets.stats()).plus(inliners.stats()).plus(pruners.stats())
+                .plus(comments.stats()).plus(metadata.stats());
+    }
+
+    /**
+     * Discard the cached entries of changed files, whatever their version
+     *
+     * Entries are keyed by the version the loader reports, which for files
+     * is the modification time and size. An edit that keeps the size within
+     * the timestamp resolution of the filesystem isn't a new version, so a
+     * caller that knows a file changed should invalidate it.
+     *
+     * @param paths changed files
+     */
+    public void invalidate(Collection<Path> paths) {
+        Set<Path> normalized = new HashSet<>();
+        for(Path path : paths)
+            normalized.add(path.toAbsolutePath().normalize());
+
+        documents.asMap().keySet().removeIf(key -> normalized.contains(key.path));
+        stylesheets.asMap().keySet().removeIf(key -> normalized.contains(key.path));
+        metadata.asMap().keySet().removeIf(key -> normalized.contains(key.path));
+    }
+
+    /**
+     * Discard all cached entries
+     */
+    public void invalidateAll() {
+        documents.invalidateAll();
+        stylesheets.invalidateAll();
+        inliners.invalidateAll();
+        pruners.invalidateAll();
+        comments.invalidateAll();
+        metadata.invalidateAll();
+    }
+
+    private static Key key(Path path, TemplateResourceLoader loader) throws IOException {
+        return new Key(path.toAbsolutePath().normalize(), loader.getVersion(path), loader);
+    }
+
+    /**
+     * Key a resource, noting the version in the context before the resource
+     * is read, so it never describes newer content than the render used
+     */
+    private static Key key(Path path, TemplateResourceLoader loader, ProcessorContext context) throws IOException {
+        TemplateResourceLoader.Version version;
+        try {
+            version = loader.getVersion(path);
+        } catch(NoSuchFileException ex) {
+            context.addVersion(path, ProcessorContext.MISSING);
+            throw ex;
+        }
+
+        context.addVersion(path, version);
+        return new Key(path.toAbsolutePath().normalize(), version, loader);
+    }
+
+    private static <K, T> T get(Cache<K, T> cache, K key, Callable<T> loader) throws IOException {
+        try {
+            return cache.get(key, loader);
+        } catch(ExecutionException | UncheckedExecutionException ex) {
+            if(ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException("Unable to load " + key, ex.getCause());
+        }
+    }
+
+    /**
+     * Cache key - a resource of a loader at a specific version
+     */
+    private static final class Key {
+        private final Path path;
+        private final TemplateResourceLoader.Version version;
+        private final TemplateResourceLoader loader;
+
+        Key(Path path, TemplateResourceLoader.Version version, TemplateResourceLoader loader) {
+            this.path = path;
+            this.version = version;
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return loader == other.loader && version.equals(other.version) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * path.hashCode() + version.hashCode()) + System.identityHashCode(loader);
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+}
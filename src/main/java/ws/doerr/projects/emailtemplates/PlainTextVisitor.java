@@ -0,0 +1,303 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeVisitor;
+
+/**
+ * Jsoup Node Visitor to extract a plain text rendering
+ *
+ * Produces the text alternative of an email. Whitespace is collapsed as a
+ * browser would, block elements and table rows start new lines, paragraphs
+ * and headings are separated by a blank line, list items are bulleted or
+ * numbered and links are followed by their target. The head, styles,
+ * scripts and comments are left out.
+ */
+class PlainTextVisitor implements NodeVisitor {
+    // Elements whose content isn't rendered (kept sorted for binarySearch)
+    private static final String[] HIDDEN = { "head", "noscript", "script", "style", "title" };
+
+    // Elements separated from their surroundings by a line break
+    private static final String[] BLOCKS = {
+            "address", "article", "aside", "center", "dd", "div", "dl", "dt", "fieldset", "figure", "footer",
+            "form", "header", "li", "main", "nav", "ol", "section", "table", "tbody", "tfoot", "thead", "tr", "ul"
+    };
+
+    // Elements separated from their surroundings by a blank line
+    private static final String[] PARAGRAPHS = {
+            "blockquote", "h1", "h2", "h3", "h4", "h5", "h6", "p", "pre"
+    };
+
+    private static final String BULLET = "* ";
+    private static final String INDENT = "  ";
+    private static final int RULE_WIDTH = 40;
+
+    private final StringBuilder text = new StringBuilder();
+
+    // Open lists, each holding the next item number or 0 for a bullet list
+    private final Deque<Integer> lists = new ArrayDeque<>();
+
+    private int hidden;
+    private int breaks;
+    private boolean space;
+    private boolean cell;
+    private String prefix;
+
+    /**
+     * @return the text rendered so far, without leading or trailing blank lines
+     */
+    String getText() {
+        return text.toString();
+    }
+
+    @Override
+    public void head(Node node, int depth) {
+        if(node instanceof TextNode) {
+            if(hidden == 0)
+                appendText(((TextNode) node).getWholeText());
+            return;
+        }
+
+        if(!(node instanceof Element))
+            return;
+
+        Element e = (Element) node;
+        String tag = e.tagName();
+
+        if(isOneOf(HIDDEN, tag)) {
+            hidden++;
+            return;
+        }
+
+        if(hidden > 0)
+            return;
+
+        switch(tag) {
+            case "br":
+                lineBreak();
+                break;
+            case "hr":
+                block(1);
+                appendWord(repeat('-', RULE_WIDTH));
+                block(1);
+                break;
+            case "img":
+                if(!e.attr("alt").trim().isEmpty())
+                    appendText(e.attr("alt"));
+                break;
+            case "ul":
+                lists.push(0);
+                block(1);
+                break;
+            case "ol":
+                lists.push(1);
+                block(1);
+                break;
+            case "li":
+                block(1);
+                prefix = listPrefix();
+                break;
+            case "tr":
+                block(1);
+                cell = false;
+                break;
+            case "td":
+            case "th":
+                // Cells of a row run on, separated by a space
+                if(cell)
+                    space = true;
+                cell = true;
+                break;
+            default:
+                if(isOneOf(PARAGRAPHS, tag))
+                    block(2);
+                else if(isOneOf(BLOCKS, tag))
+                    block(1);
+        }
+    }
+
+    @Override
+    public void tail(Node node, int depth) {
+        if(!(node instanceof Element))
+            return;
+
+        Element e = (Element) node;
+        String tag = e.tagName();
+
+        if(isOneOf(HIDDEN, tag)) {
+            hidden--;
+            return;
+        }
+
+        if(hidden > 0)
+            return;
+
+        switch(tag) {
+            case "a":
+                appendLink(e);
+                break;
+            case "ul":
+            case "ol":
+                lists.pop();
+                block(1);
+                break;
+            default:
+                if(isOneOf(PARAGRAPHS, tag))
+                    block(2);
+                else if(isOneOf(BLOCKS, tag))
+                    block(1);
+        }
+    }
+
+    /**
+     * Follow a link with its target, unless the text already is the target
+     */
+    private void appendLink(Element link) {
+        String href = link.attr("href").trim();
+        if(href.isEmpty() || href.startsWith("#") || href.startsWith("javascript:"))
+            return;
+
+        String label = link.text().trim();
+        String target = href.startsWith("mailto:") ? href.substring("mailto:".length()) : href;
+        if(label.equals(target) || label.equals(href))
+            return;
+
+        space = true;
+        appendWord("(" + href + ")");
+    }
+
+    private String listPrefix() {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 1; i < lists.size(); i++)
+            sb.append(INDENT);
+
+        Integer number = lists.peek();
+        if(number == null || number == 0) {
+            sb.append(BULLET);
+        } else {
+            sb.append(number).append(". ");
+            lists.pop();
+            lists.push(number + 1);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Request line breaks before the next text
+     *
+     * @param count 1 to start a new line, 2 to leave a blank line
+     */
+    private void block(int count) {
+        breaks = Math.max(breaks, count);
+        space = false;
+    }
+
+    private void lineBreak() {
+        // Consecutive breaks add up, to at most one blank line
+        breaks = text.length() == 0 ? 0 : Math.min(breaks + 1, 2);
+        space = false;
+    }
+
+    /**
+     * Append text with every run of whitespace collapsed to a single space
+     */
+    private void appendText(String value) {
+        int length = value.length();
+        int start = -1;
+
+        for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if(isWhitespace(c)) {
+                if(start >= 0) {
+                    appendWord(value.substring(start, i));
+                    start = -1;
+                }
+                space = true;
+            } else if(start < 0) {
+                start = i;
+            }
+        }
+
+        if(start >= 0)
+            appendWord(value.substring(start));
+    }
+
+    /**
+     * Append a run of non whitespace, applying any pending breaks, prefix or
+     * space first
+     */
+    private void appendWord(String word) {
+        if(text.length() > 0) {
+            if(breaks > 0) {
+                trimTrailingSpace();
+                for(int i = 0; i < breaks; i++)
+                    text.append('\n');
+            } else if(space && prefix == null) {
+                text.append(' ');
+            }
+        }
+
+        if(prefix != null) {
+            text.append(prefix);
+            prefix = null;
+        }
+
+        text.append(word);
+
+        breaks = 0;
+        space = false;
+    }
+
+    private void trimTrailingSpace() {
+        int end = text.length();
+        while(end > 0 && text.charAt(end - 1) == ' ')
+            end--;
+        text.setLength(end);
+    }
+
+    private static boolean isOneOf(String[] tags, String tag) {
+        return Arrays.binarySearch(tags, tag) >= 0;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * Same characters the html minifier collapses, plus non breaking spaces,
+     * which are mostly used as spacers in email layouts
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r' || c == '\u00a0';
+    }
+}
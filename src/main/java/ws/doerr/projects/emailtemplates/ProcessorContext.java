@@ -24,42 +24,129 @@
 package ws.doerr.projects.emailtemplates;
 
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  *  Context for a processed template
  */
 public class ProcessorContext {
+    /**
+     * Processing phases that are timed individually
+     */
+    public enum Phase {
+        Parse,
+        Links,
+        Template,
+        Styles,
+        Write
+    }
+
+    /**
+     * Version noted for an input that didn't exist when it was to be read
+     */
+    static final TemplateResourceLoader.Version MISSING = new TemplateResourceLoader.Version(-1, -1);
+
     private final Set<Dependency> dependencies = new HashSet<>();
+    private final Map<Path, TemplateResourceLoader.Version> versions = new HashMap<>();
     private final Map<String, String> meta = new HashMap<>();
-    private String html;
+    private Supplier<String> html;
+    private String text;
     private String title;
 
+    private final long[] timings = new long[Phase.values().length];
+    private long latencyNanos;
+    private long bytesIn;
+    private long bytesOut;
+    private int includeDepth;
+    private long inlineStyleBytes;
+    private long inlineStyleRawBytes;
+    private boolean cached;
+
+    /**
+     * @return read only view of the templates, fragments and stylesheets the
+     * render used
+     */
     public Set<Dependency> getDependencies() {
-        return dependencies;
+        return Collections.unmodifiableSet(dependencies);
     }
 
+    /**
+     * @return read only view of the meta data of the document
+     */
     public Map<String, String> getMeta() {
-        return meta;
+        return Collections.unmodifiableMap(meta);
     }
 
     protected void addDependency(Path path, Dependency.DependencyType type) {
         dependencies.add(new Dependency(path, type));
     }
 
+    /**
+     * Note the version of an input as it is about to be read. The first
+     * version noted for a path is kept
+     *
+     * @param path input path, as the render refers to it
+     * @param version version reported by the loader, or MISSING
+     */
+    void addVersion(Path path, TemplateResourceLoader.Version version) {
+        versions.putIfAbsent(path, version);
+    }
+
+    /**
+     * @param path input path, as the render refers to it
+     * @return the version of the input the render read, MISSING if it didn't
+     * exist, or null if the render didn't note it, e.g. because the result
+     * came from an output cache
+     */
+    TemplateResourceLoader.Version getVersion(Path path) {
+        return versions.get(path);
+    }
+
     protected void addMeta(String label, String value) {
         meta.put(label, value);
     }
 
     protected void setHtml(String html) {
+        this.html = () -> html;
+    }
+
+    void setHtml(Supplier<String> html) {
         this.html = html;
     }
 
+    /**
+     * Get the processed html
+     *
+     * When the output was streamed to a file the html is read back from that
+     * file on each call. When it was streamed to a caller supplied stream or
+     * channel it isn't retained and this returns null.
+     *
+     * @return the processed html or null if it wasn't retained
+     */
     public String getHtml() {
-        return html;
+        return html == null ? null : html.get();
+    }
+
+    /**
+     * Get the plain text alternative
+     *
+     * Only rendered when the processor was created with plain text enabled.
+     *
+     * @return the plain text rendering of the html or null if it wasn't
+     * rendered
+     */
+    public String getText() {
+        return text;
+    }
+
+    void setText(String text) {
+        this.text = text;
     }
 
     public String getTitle() {
@@ -69,4 +156,124 @@ public class ProcessorContext {
     protected void setTitle(String title) {
         this.title = title;
     }
+
+    /**
+     * @param phase processing phase
+     * @return time spent in the phase in nanoseconds
+     */
+    public long getTiming(Phase phase) {
+        return timings[phase.ordinal()];
+    }
+
+    /**
+     * @return time spent in each phase in nanoseconds
+     */
+    public Map<Phase, Long> getTimings() {
+        Map<Phase, Long> result = new EnumMap<>(Phase.class);
+        for(Phase phase : Phase.values())
+            result.put(phase, timings[phase.ordinal()]);
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return total time spent in all the phases in nanoseconds
+     */
+    public long getElapsedNanos() {
+        long total = 0;
+        for(long timing : timings)
+            total += timing;
+        return total;
+    }
+
+    /**
+     * Wall clock time of the whole call, including what falls outside the
+     * phases such as output cache lookups and writing to a destination file.
+     * Set before the processor's listeners are notified.
+     *
+     * @return latency of the render in nanoseconds
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @return size of the source document in bytes
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return size of the UTF-8 encoded output in bytes
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return deepest nesting of imported fragments, 0 if nothing was imported
+     */
+    public int getIncludeDepth() {
+        return includeDepth;
+    }
+
+    /**
+     * @return size of the inlined style attributes in the output
+     */
+    public long getInlineStyleBytes() {
+        return inlineStyleBytes;
+    }
+
+    /**
+     * @return bytes saved by compacting the inlined style attributes
+     */
+    public long getInlineStyleSavedBytes() {
+        return inlineStyleRawBytes - inlineStyleBytes;
+    }
+
+    /**
+     * @return true if the result was served from a cache rather than
+     * processed, in which case no phase timings are recorded
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * Charge the time since a start mark to a phase
+     *
+     * @param phase phase being timed
+     * @param start System.nanoTime() at the start of the phase
+     * @return the current System.nanoTime(), to start the next phase
+     */
+    long time(Phase phase, long start) {
+        long now = System.nanoTime();
+        timings[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    void setLatencyNanos(long latencyNanos) {
+        this.latencyNanos = latencyNanos;
+    }
+
+    void setBytesIn(long bytesIn) {
+        this.bytesIn = bytesIn;
+    }
+
+    void setBytesOut(long bytesOut) {
+        this.bytesOut = bytesOut;
+    }
+
+    void setIncludeDepth(int depth) {
+        includeDepth = Math.max(includeDepth, depth);
+    }
+
+    void addInlineStyle(long rawBytes, long bytes) {
+        inlineStyleRawBytes += rawBytes;
+        inlineStyleBytes += bytes;
+    }
+
+    void setCached(boolean cached) {
+        this.cached = cached;
+    }
 }
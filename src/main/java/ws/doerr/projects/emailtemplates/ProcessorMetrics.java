@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Processor Metrics
+ *
+ * Aggregates the render counts, latencies, phase timings and sizes of one
+ * template processor. Every processor keeps one, available through
+ * {@link TemplateProcessor#getMetrics()}, and it can be published over JMX
+ * with {@link #register(String)}.
+ *
+ * Latencies are the wall clock time of each process call, so renders served
+ * from the output cache count with the time the lookup took. Results served
+ * by a {@link RenderCache} never reach the processor and aren't counted.
+ */
+public class ProcessorMetrics implements ProcessorListener, ProcessorMetricsMXBean {
+    /**
+     * JMX domain the metrics are registered under
+     */
+    public static final String DOMAIN = "ws.doerr.projects.emailtemplates";
+
+    // Upper bounds of the latency histogram buckets, the last bucket is open
+    private static final long[] BUCKET_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+    private static final ProcessorContext.Phase[] PHASES = ProcessorContext.Phase.values();
+
+    private final ParseCache cache;
+
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cached = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+    private final LongAdder[] phaseNanos = new LongAdder[PHASES.length];
+
+    /**
+     * @param cache parse cache the hit rate is reported for
+     */
+    ProcessorMetrics(ParseCache cache) {
+        this.cache = cache;
+        for(int i = 0; i < phaseNanos.length; i++)
+            phaseNanos[i] = new LongAdder();
+    }
+
+    /**
+     * Publish the metrics with the platform MBean server
+     *
+     * @param name name distinguishing this processor from others in the JVM
+     * @return the name the metrics were registered under
+     * @throws JMException registering the MBean
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=TemplateProcessor,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Remove previously published metrics from the platform MBean server
+     *
+     * @param objectName name returned by {@link #register(String)}
+     * @throws JMException unregistering the MBean
+     */
+    public static void unregister(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    @Override
+    public void processed(ProcessorContext context) {
+        long nanos = context.getLatencyNanos();
+
+        processed.increment();
+        if(context.isCached())
+            cached.increment();
+        bytesIn.add(context.getBytesIn());
+        bytesOut.add(context.getBytesOut());
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        histogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(nanos)));
+
+        for(ProcessorContext.Phase phase : PHASES)
+            phaseNanos[phase.ordinal()].add(context.getTiming(phase));
+    }
+
+    @Override
+    public void failed(ProcessorContext context, Exception ex) {
+        failed.increment();
+    }
+
+    @Override
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getCachedCount() {
+        return cached.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return mean(totalNanos.sum());
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyHistogram() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for(int i = 0; i < BUCKET_MILLIS.length; i++)
+            result.put("<=" + BUCKET_MILLIS[i] + "ms", histogram.get(i));
+        result.put(">" + BUCKET_MILLIS[BUCKET_MILLIS.length - 1] + "ms", histogram.get(BUCKET_MILLIS.length));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMeanMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for(ProcessorContext.Phase phase : PHASES)
+            result.put(phase.name(), mean(phaseNanos[phase.ordinal()].sum()));
+        return result;
+    }
+
+    @Override
+    public double getParseCacheHitRate() {
+        return cache.getStats().hitRate();
+    }
+
+    @Override
+    public void reset() {
+        processed.reset();
+        failed.reset();
+        cached.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+        for(int i = 0; i < histogram.length(); i++)
+            histogram.set(i, 0);
+        for(LongAdder phase : phaseNanos)
+            phase.reset();
+    }
+
+    private double mean(long nanos) {
+        long count = processed.sum();
+        return count == 0 ? 0 : nanos / 1e6 / count;
+    }
+
+    private static int bucket(long millis) {
+        for(int i = 0; i < BUCKET_MILLIS.length; i++) {
+            if(millis <= BUCKET_MILLIS[i])
+                return i;
+        }
+        return BUCKET_MILLIS.length;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ProcessorMetrics} of a template processor
+ */
+public interface ProcessorMetricsMXBean {
+    /**
+     * @return number of completed renders
+     */
+    long getProcessedCount();
+
+    /**
+     * @return number of failed renders
+     */
+    long getFailedCount();
+
+    /**
+     * @return number of completed renders served from the output cache
+     */
+    long getCachedCount();
+
+    /**
+     * @return total size of the source documents of completed renders
+     */
+    long getBytesIn();
+
+    /**
+     * @return total size of the output of completed renders
+     */
+    long getBytesOut();
+
+    /**
+     * @return mean wall clock latency of completed renders
+     */
+    double getMeanLatencyMillis();
+
+    /**
+     * @return highest wall clock latency of a completed render
+     */
+    double getMaxLatencyMillis();
+
+    /**
+     * @return number of completed renders in each latency bucket, keyed by
+     * the bucket's upper bound
+     */
+    Map<String, Long> getLatencyHistogram();
+
+    /**
+     * @return mean time per completed render spent in each phase
+     */
+    Map<String, Double> getPhaseMeanMillis();
+
+    /**
+     * @return hit rate of the parse cache the processor uses, including the
+     * lookups of any other processor sharing it
+     */
+    double getParseCacheHitRate();
+
+    /**
+     * Clear the counters. The parse cache statistics aren't affected
+     */
+    void reset();
+}
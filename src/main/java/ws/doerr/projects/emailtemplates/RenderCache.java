@@ -0,0 +1,265 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rendered Template Cache
+ *
+ * Keeps the results of a {@link TemplateProcessor} in memory for services
+ * that render the same emails over and over. The cache is bounded by the
+ * total length of the cached html and evicts the least recently used
+ * results first.
+ *
+ * When a result is cached the version of the source and of every dependency
+ * recorded by the render is kept, as the processor's resource loader reported
+ * it just before the render read the file. A lookup checks them again, at
+ * most once per check interval, and a result whose inputs changed is
+ * processed again, including inputs edited while the render was running. Nothing is ever hashed. References that failed
+ * to load are recorded as dependencies too, so creating a missing file also
+ * makes the result stale.
+ *
+ * Cached contexts are shared by every caller. Their dependencies and meta
+ * data are read only views, so one caller can't change another's result.
+ * Instances are thread safe, and concurrent lookups of an email that isn't
+ * cached process it once.
+ */
+public class RenderCache {
+    /**
+     * Default maximum total length of the cached html, in characters
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 64L * 1024 * 1024;
+
+    /**
+     * Default minimum time between checks of the inputs of a cached result
+     */
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final TemplateProcessor processor;
+    private final long checkIntervalNanos;
+    private final Cache<Path, Rendered> cache;
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Create a cache with the default size and check interval
+     *
+     * @param processor processor used for renders that aren't cached
+     */
+    public RenderCache(TemplateProcessor processor) {
+        this(processor, DEFAULT_MAXIMUM_WEIGHT, DEFAULT_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param processor processor used for renders that aren't cached
+     * @param maximumWeight maximum total length of the cached html, in characters
+     * @param checkInterval minimum time between checks of the inputs of a
+     * cached result, 0 to check on every lookup
+     * @param unit unit of the check interval
+     */
+    public RenderCache(TemplateProcessor processor, long maximumWeight, long checkInterval, TimeUnit unit) {
+        this.processor = processor;
+        this.checkIntervalNanos = unit.toNanos(checkInterval);
+
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((Path path, Rendered rendered) -> rendered.weight)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the processor used for renders that aren't cached
+     */
+    public TemplateProcessor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * Get the result of processing an email, processing it only if it isn't
+     * cached or any of its inputs changed
+     *
+     * @param source path of the file to process
+     * @return the shared context of the render
+     * @throws Exception resulting from the processing of the source
+     */
+    public ProcessorContext getOrProcess(Path source) throws Exception {
+        Path key = DependencyManifest.normalize(source);
+
+        Rendered rendered = get(key);
+        if(!rendered.isCurrent(checkIntervalNanos)) {
+            cache.asMap().remove(key, rendered);
+            invalidations.increment();
+            rendered = get(key);
+        }
+
+        return rendered.context;
+    }
+
+    /**
+     * Forget the result for an email
+     *
+     * @param source email source
+     */
+    public void invalidate(Path source) {
+        cache.invalidate(DependencyManifest.normalize(source));
+    }
+
+    /**
+     * Forget every result
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return number of cached results
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Get the cache statistics
+     *
+     * A lookup that finds a result whose inputs changed counts as a single
+     * miss.
+     *
+     * @return hit, miss, load and eviction statistics
+     */
+    public CacheStats getStats() {
+        CacheStats stats = cache.stats();
+        return new CacheStats(
+                stats.hitCount() - invalidations.sum(),
+                stats.missCount(),
+                stats.loadSuccessCount(),
+                stats.loadExceptionCount(),
+                stats.totalLoadTime(),
+                stats.evictionCount());
+    }
+
+    /**
+     * @return number of results discarded because their inputs changed
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    private Rendered get(Path key) throws Exception {
+        try {
+            return cache.get(key, () -> {
+                // The processor notes each version before reading the file,
+                // so an edit made while processing isn't mistaken for the
+                // processed version
+                TemplateResourceLoader loader = processor.getLoader();
+                ProcessorContext context = processor.process(key);
+
+                Map<Path, TemplateResourceLoader.Version> inputs = new HashMap<>();
+                inputs.put(key, read(context, loader, key));
+                for(Dependency dependency : context.getDependencies())
+                    inputs.putIfAbsent(dependency.getPath(), read(context, loader, dependency.getPath()));
+
+                return new Rendered(context, loader, inputs);
+            });
+        } catch(ExecutionException | UncheckedExecutionException | ExecutionError ex) {
+            if(ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw (Error) ex.getCause();
+        }
+    }
+
+    /**
+     * @return the version of an input the render read, or the current one if
+     * the render didn't note it because it came from an output cache
+     */
+    private static TemplateResourceLoader.Version read(ProcessorContext context, TemplateResourceLoader loader,
+            Path path) {
+        TemplateResourceLoader.Version version = context.getVersion(path);
+        return version == null ? version(loader, path) : version;
+    }
+
+    /**
+     * @return the version of a resource, MISSING if it doesn't exist or null
+     * if it can't be read
+     */
+    private static TemplateResourceLoader.Version version(TemplateResourceLoader loader, Path path) {
+        try {
+            return loader.getVersion(path);
+        } catch(NoSuchFileException ex) {
+            return ProcessorContext.MISSING;
+        } catch(IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * A cached render and the state of its inputs
+     */
+    private static final class Rendered {
+        private final ProcessorContext context;
+        private final TemplateResourceLoader loader;
+        private final Map<Path, TemplateResourceLoader.Version> inputs;
+        private final int weight;
+        private volatile long checked = System.nanoTime();
+
+        Rendered(ProcessorContext context, TemplateResourceLoader loader,
+                Map<Path, TemplateResourceLoader.Version> inputs) {
+            this.context = context;
+            this.loader = loader;
+            this.inputs = inputs;
+
+            String html = context.getHtml();
+            this.weight = html == null ? 1 : Math.max(1, html.length());
+        }
+
+        boolean isCurrent(long intervalNanos) {
+            long now = System.nanoTime();
+            if(now - checked < intervalNanos)
+                return true;
+
+            for(Map.Entry<Path, TemplateResourceLoader.Version> input : inputs.entrySet()) {
+                TemplateResourceLoader.Version current = version(loader, input.getKey());
+                if(current == null || !current.equals(input.getValue()))
+                    return false;
+            }
+
+            checked = now;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inline Style Compactor
+ *
+ * Rewrites a style attribute into the smallest equivalent declaration list:
+ *
+ * - Repeated properties are reduced to the one that wins the cascade, the
+ *   last one unless an earlier one is !important
+ * - margin, padding, border-width, border-style and border-color longhands
+ *   are merged into their shorthand, and the shorthand written in its
+ *   shortest form, when nothing between them could change the result
+ * - Hex and rgb() colors are written as lowercase, 3 digit where possible, hex
+ * - Zero lengths lose their unit, numbers lose redundant zeros
+ * - Whitespace is collapsed and dropped around commas
+ *
+ * Quoted strings, the arguments of functions other than rgb() and the values
+ * of custom properties are left exactly as written.
+ */
+final class StyleCompactor {
+    private static final String IMPORTANT = "!important";
+
+    private static final String[] SIDES = { "top", "right", "bottom", "left" };
+
+    // Box shorthands and the other properties that set their longhands
+    private static final String[][] BOXES = {
+            { "margin" },
+            { "padding" },
+            { "border-width", "border", "border-top", "border-right", "border-bottom", "border-left" },
+            { "border-style", "border", "border-top", "border-right", "border-bottom", "border-left" },
+            { "border-color", "border", "border-top", "border-right", "border-bottom", "border-left" }
+    };
+
+    // Length units a zero can drop (kept sorted for binarySearch)
+    private static final String[] LENGTH_UNITS = {
+            "ch", "cm", "em", "ex", "in", "mm", "pc", "pt", "px", "q", "rem", "vh", "vmax", "vmin", "vw"
+    };
+
+    // Properties where a unitless zero means something else
+    private static final String[] KEEP_UNITS = { "flex", "flex-basis" };
+
+    private static final Pattern NUMBER = Pattern.compile("([+-]?)(\\d*)(?:\\.(\\d*))?([a-zA-Z%]*)");
+    private static final Pattern HEX = Pattern.compile("#[0-9a-fA-F]{3}|#[0-9a-fA-F]{6}");
+    private static final Pattern RGB = Pattern.compile("rgb\\(\\s*(\\d{1,3})\\s*,\\s*(\\d{1,3})\\s*,\\s*(\\d{1,3})\\s*\\)",
+            Pattern.CASE_INSENSITIVE);
+
+    private StyleCompactor() {
+    }
+
+    /**
+     * Compact a style attribute
+     *
+     * @param style declarations as written in a style attribute
+     * @return the equivalent compacted declarations
+     */
+    static String compact(String style) {
+        Map<String, Declaration> declarations = new LinkedHashMap<>();
+
+        for(String text : split(style, ';')) {
+            int colon = text.indexOf(':');
+            if(colon <= 0)
+                continue;
+
+            String name = text.substring(0, colon).trim();
+            if(!name.startsWith("--"))
+                name = name.toLowerCase(Locale.ROOT);
+
+            String value = text.substring(colon + 1).trim();
+            boolean important = false;
+
+            int bang = value.lastIndexOf('!');
+            if(bang >= 0 && value.substring(bang + 1).trim().equalsIgnoreCase("important")) {
+                important = true;
+                value = value.substring(0, bang).trim();
+            }
+
+            if(name.isEmpty() || value.isEmpty())
+                continue;
+
+            // Custom property values are only interpreted where they are used
+            if(!name.startsWith("--"))
+                value = normalize(name, value);
+
+            String[] sides = box(name) ? splitWhitespace(value) : null;
+            if(sides != null && sides.length >= 1 && sides.length <= 4) {
+                // Expand the shorthand, it is merged back at the end
+                if(put(declarations, name, null, important)) {
+                    for(int i = 0; i < SIDES.length; i++)
+                        put(declarations, longhand(name, i), side(sides, i), important);
+                }
+            } else {
+                put(declarations, name, value, important);
+            }
+        }
+
+        for(String[] family : BOXES)
+            merge(declarations, family);
+
+        StringBuilder sb = new StringBuilder(style.length());
+        for(Declaration declaration : declarations.values()) {
+            if(sb.length() > 0)
+                sb.append(';');
+            sb.append(declaration.name).append(':').append(declaration.value);
+            if(declaration.important)
+                sb.append(IMPORTANT);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Apply a declaration in cascade order
+     *
+     * @param value the value, or null to only remove what the declaration
+     * overrides
+     * @return false if an earlier !important declaration wins
+     */
+    private static boolean put(Map<String, Declaration> declarations, String name, String value, boolean important) {
+        Declaration existing = declarations.get(name);
+        if(existing != null && existing.important && !important)
+            return false;
+
+        // The winning declaration moves to the end
+        declarations.remove(name);
+        if(value != null)
+            declarations.put(name, new Declaration(name, value, important));
+        return true;
+    }
+
+    /**
+     * Merge the four longhands of a box property into the shorthand
+     *
+     * Only done when all four have the same importance and nothing between
+     * the first and the last of them sets any of them.
+     */
+    private static void merge(Map<String, Declaration> declarations, String[] family) {
+        String shorthand = family[0];
+
+        String[] values = new String[SIDES.length];
+        Boolean important = null;
+        for(int i = 0; i < SIDES.length; i++) {
+            Declaration declaration = declarations.get(longhand(shorthand, i));
+            if(declaration == null || (important != null && important != declaration.important))
+                return;
+
+            values[i] = declaration.value;
+            important = declaration.important;
+        }
+
+        List<Declaration> merged = new ArrayList<>(declarations.size());
+        int remaining = SIDES.length;
+        boolean inserted = false;
+
+        for(Declaration declaration : declarations.values()) {
+            if(isLonghand(shorthand, declaration.name)) {
+                if(!inserted) {
+                    merged.add(new Declaration(shorthand, shortest(values), important));
+                    inserted = true;
+                }
+                remaining--;
+                continue;
+            }
+
+            if(inserted && remaining > 0 && Arrays.asList(family).contains(declaration.name))
+                return;
+
+            merged.add(declaration);
+        }
+
+        declarations.clear();
+        for(Declaration declaration : merged)
+            declarations.put(declaration.name, declaration);
+    }
+
+    private static String shortest(String[] values) {
+        String top = values[0];
+        String right = values[1];
+        String bottom = values[2];
+        String left = values[3];
+
+        if(!right.equals(left))
+            return top + ' ' + right + ' ' + bottom + ' ' + left;
+        if(!top.equals(bottom))
+            return top + ' ' + right + ' ' + bottom;
+        if(!top.equals(right))
+            return top + ' ' + right;
+        return top;
+    }
+
+    private static boolean box(String name) {
+        for(String[] family : BOXES) {
+            if(family[0].equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isLonghand(String shorthand, String name) {
+        for(int i = 0; i < SIDES.length; i++) {
+            if(longhand(shorthand, i).equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the longhand for a side, e.g. border-top-width for border-width
+     */
+    private static String longhand(String shorthand, int side) {
+        int dash = shorthand.indexOf('-');
+        return dash < 0 ?
+                shorthand + '-' + SIDES[side] :
+                shorthand.substring(0, dash) + '-' + SIDES[side] + shorthand.substring(dash);
+    }
+
+    /**
+     * @return the value of a side from the 1 to 4 shorthand values
+     */
+    private static String side(String[] values, int side) {
+        switch(values.length) {
+            case 1:
+                return values[0];
+            case 2:
+                return values[side % 2];
+            case 3:
+                return side == 3 ? values[1] : values[side];
+            default:
+                return values[side];
+        }
+    }
+
+    /**
+     * Collapse whitespace and normalize the colors and numbers of a value
+     */
+    private static String normalize(String name, String value) {
+        boolean keepUnits = Arrays.asList(KEEP_UNITS).contains(name);
+        StringBuilder sb = new StringBuilder(value.length());
+
+        int i = 0;
+        int length = value.length();
+        while(i < length) {
+            char c = value.charAt(i);
+
+            if(c == '"' || c == '\'') {
+                int end = skipString(value, i);
+                sb.append(value, i, end);
+                i = end;
+            } else if(isWhitespace(c)) {
+                while(i < length && isWhitespace(value.charAt(i)))
+                    i++;
+
+                // Keep a single space, except next to a comma
+                if(i < length && value.charAt(i) != ',' && sb.length() > 0 && sb.charAt(sb.length() - 1) != ',')
+                    sb.append(' ');
+            } else if(c == ',') {
+                sb.append(c);
+                i++;
+                while(i < length && isWhitespace(value.charAt(i)))
+                    i++;
+            } else {
+                // A word, possibly a function call
+                int end = i;
+                while(end < length && !isWhitespace(value.charAt(end)) && value.charAt(end) != ',' &&
+                        value.charAt(end) != '(' && value.charAt(end) != '"' && value.charAt(end) != '\'')
+                    end++;
+
+                if(end < length && value.charAt(end) == '(') {
+                    int close = skipFunction(value, end);
+                    String function = value.substring(i, close);
+
+                    Matcher rgb = RGB.matcher(function);
+                    sb.append(rgb.matches() ? rgb(rgb) : function);
+                    i = close;
+                } else {
+                    sb.append(word(value.substring(i, end), keepUnits));
+                    i = end;
+                }
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static String word(String word, boolean keepUnits) {
+        if(HEX.matcher(word).matches())
+            return hex(word.substring(1).toLowerCase(Locale.ROOT));
+
+        Matcher number = NUMBER.matcher(word);
+        if(!number.matches())
+            return word;
+
+        String sign = number.group(1);
+        String integer = stripLeadingZeros(number.group(2));
+        String fraction = number.group(3) == null ? "" : stripTrailingZeros(number.group(3));
+        String unit = number.group(4);
+
+        if(integer.isEmpty() && fraction.isEmpty()) {
+            if(number.group(2).isEmpty() && (number.group(3) == null || number.group(3).isEmpty()))
+                return word;
+
+            // Zero
+            boolean length = Arrays.binarySearch(LENGTH_UNITS, unit.toLowerCase(Locale.ROOT)) >= 0;
+            return !unit.isEmpty() && (keepUnits || !length) ? "0" + unit : "0";
+        }
+
+        return sign + integer + (fraction.isEmpty() ? "" : "." + fraction) + unit;
+    }
+
+    private static String rgb(Matcher rgb) {
+        StringBuilder hex = new StringBuilder(6);
+        for(int group = 1; group <= 3; group++) {
+            int component = Integer.parseInt(rgb.group(group));
+            if(component > 255)
+                return rgb.group();
+            hex.append(Character.forDigit(component >> 4, 16)).append(Character.forDigit(component & 0xf, 16));
+        }
+        return hex(hex.toString());
+    }
+
+    /**
+     * @param digits lowercase hex digits without the '#'
+     * @return the shortest form of the color
+     */
+    private static String hex(String digits) {
+        if(digits.length() == 6 &&
+                digits.charAt(0) == digits.charAt(1) &&
+                digits.charAt(2) == digits.charAt(3) &&
+                digits.charAt(4) == digits.charAt(5))
+            return "#" + digits.charAt(0) + digits.charAt(2) + digits.charAt(4);
+        return "#" + digits;
+    }
+
+    private static String stripLeadingZeros(String digits) {
+        int start = 0;
+        while(start < digits.length() && digits.charAt(start) == '0')
+            start++;
+        return digits.substring(start);
+    }
+
+    private static String stripTrailingZeros(String digits) {
+        int end = digits.length();
+        while(end > 0 && digits.charAt(end - 1) == '0')
+            end--;
+        return digits.substring(0, end);
+    }
+
+    /**
+     * Split on a separator outside of strings and parentheses
+     */
+    static List<String> split(String text, char separator) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        int depth = 0;
+
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\'') {
+                i = skipString(text, i) - 1;
+            } else if(c == '(') {
+                depth++;
+            } else if(c == ')' && depth > 0) {
+                depth--;
+            } else if(c == separator && depth == 0) {
+                parts.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+
+        parts.add(text.substring(start));
+        return parts;
+    }
+
+    /**
+     * @return the values of a normalized value, or null if any is a string
+     * or function
+     */
+    private static String[] splitWhitespace(String value) {
+        if(value.indexOf('(') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\'') >= 0 || value.indexOf(',') >= 0)
+            return null;
+        return value.split(" ");
+    }
+
+    /**
+     * @return the index after the string starting at start
+     */
+    static int skipString(String text, int start) {
+        char quote = text.charAt(start);
+        for(int i = start + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '\\')
+                i++;
+            else if(c == quote)
+                return i + 1;
+        }
+        return text.length();
+    }
+
+    /**
+     * @return the index after the parenthesis closing the one at open
+     */
+    private static int skipFunction(String text, int open) {
+        int depth = 0;
+        for(int i = open; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\'') {
+                i = skipString(text, i) - 1;
+            } else if(c == '(') {
+                depth++;
+            } else if(c == ')' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return text.length();
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * A single property declaration
+     */
+    private static final class Declaration {
+        private final String name;
+        private final String value;
+        private final boolean important;
+
+        Declaration(String name, String value, boolean important) {
+            this.name = name;
+            this.value = value;
+            this.important = important;
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Utf8;
+import com.steadystate.css.dom.CSSStyleDeclarationImpl;
+import com.steadystate.css.dom.CSSStyleRuleImpl;
+import com.steadystate.css.dom.Property;
+import com.steadystate.css.parser.CSSOMParser;
+import com.steadystate.css.parser.SACParserCSS3;
+import com.steadystate.css.parser.selectors.GeneralAdjacentSelectorImpl;
+import com.steadystate.css.parser.selectors.PrefixAttributeConditionImpl;
+import com.steadystate.css.parser.selectors.SubstringAttributeConditionImpl;
+import com.steadystate.css.parser.selectors.SuffixAttributeConditionImpl;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.w3c.css.sac.AttributeCondition;
+import org.w3c.css.sac.CombinatorCondition;
+import org.w3c.css.sac.Condition;
+import org.w3c.css.sac.ConditionalSelector;
+import org.w3c.css.sac.DescendantSelector;
+import org.w3c.css.sac.ElementSelector;
+import org.w3c.css.sac.InputSource;
+import org.w3c.css.sac.Selector;
+import org.w3c.css.sac.SelectorList;
+import org.w3c.css.sac.SiblingSelector;
+import org.w3c.css.sac.SimpleSelector;
+import org.w3c.dom.css.CSSRule;
+import org.w3c.dom.css.CSSRuleList;
+import org.w3c.dom.css.CSSStyleSheet;
+
+/**
+ * Indexed CSS Inliner
+ *
+ * Rules are indexed by the id, class or tag of their rightmost compound
+ * selector. Applying the stylesheet walks the document once and only tests
+ * each element against the rules that could possibly match it, instead of
+ * running a full document select for every rule.
+ *
+ * Matched declarations are applied in cascade order: !important
+ * declarations last, then by selector specificity and finally by source
+ * order. Selectors containing a ':' (pseudo classes and elements) are never
+ * inlined.
+ *
+ * Instances are immutable once parsed and are shared between documents and
+ * threads through the {@link ParseCache}.
+ */
+final class StyleInliner {
+    private final Map<String, List<Rule>> byId = new HashMap<>();
+    private final Map<String, List<Rule>> byClass = new HashMap<>();
+    private final Map<String, List<Rule>> byTag = new HashMap<>();
+    private final List<Rule> universal = new ArrayList<>();
+    private int ruleCount;
+
+    private StyleInliner() {
+    }
+
+    /**
+     * Parse a stylesheet into an inliner
+     *
+     * @param css stylesheet text
+     * @return the inliner for the stylesheet
+     * @throws IOException exception parsing the stylesheet
+     */
+    static StyleInliner parse(String css) throws IOException {
+        StyleInliner inliner = new StyleInliner();
+
+        CSSOMParser parser = new CSSOMParser(new SACParserCSS3());
+        CSSStyleSheet sheet = parser.parseStyleSheet(new InputSource(new StringReader(css)), null, null);
+
+        CSSRuleList rules = sheet.getCssRules();
+        for(int i = 0; i < rules.getLength(); i++) {
+            CSSRule rule = rules.item(i);
+            if(rule instanceof CSSStyleRuleImpl)
+                inliner.add((CSSStyleRuleImpl) rule);
+        }
+
+        return inliner;
+    }
+
+    /**
+     * @return true if the stylesheet has no inlinable rules
+     */
+    boolean isEmpty() {
+        return ruleCount == 0;
+    }
+
+    /**
+     * Compute the inline styles of a document
+     *
+     * Every element matched by at least one rule gets the matched
+     * declarations, ahead of any existing inline style, compacted. The
+     * document itself isn't changed; the styles are emitted while it is
+     * written, or applied with {@link InlineStyles#apply()}. The size of the
+     * styles before and after compaction is added to the context.
+     *
+     * @param doc document to style
+     * @param context context receiving the inline style sizes
+     * @return the computed styles
+     */
+    InlineStyles compute(Document doc, ProcessorContext context) {
+        if(isEmpty())
+            return InlineStyles.EMPTY;
+
+        InlineStyles styles = new InlineStyles();
+
+        // The same style tends to repeat on many elements, compact it once
+        Map<String, String> compacted = new HashMap<>();
+        long[] sizes = new long[2];
+
+        new NodeTraversor(new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                if(node instanceof Element && !(node instanceof Document)) {
+                    Element element = (Element) node;
+                    String style = computeStyle(element);
+                    if(style != null) {
+                        style += element.attr("style");
+                        String compact = compacted.computeIfAbsent(style, StyleCompactor::compact);
+
+                        sizes[0] += Utf8.encodedLength(style);
+                        sizes[1] += Utf8.encodedLength(compact);
+
+                        styles.put(element, compact);
+                    }
+                }
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+            }
+        }).traverse(doc);
+
+        context.addInlineStyle(sizes[0], sizes[1]);
+
+        return styles;
+    }
+
+    /**
+     * Compute the inline style for a single element
+     *
+     * @param element element to match
+     * @return the declarations for the element or null if no rule matched
+     */
+    String computeStyle(Element element) {
+        List<Rule> matched = null;
+
+        if(!byId.isEmpty() && element.hasAttr("id"))
+            matched = collect(byId.get(element.id()), element, matched);
+
+        if(!byClass.isEmpty() && element.hasAttr("class")) {
+            for(String name : element.classNames())
+                matched = collect(byClass.get(name.toLowerCase(Locale.ROOT)), element, matched);
+        }
+
+        matched = collect(byTag.get(element.tagName().toLowerCase(Locale.ROOT)), element, matched);
+        matched = collect(universal, element, matched);
+
+        if(matched == null)
+            return null;
+
+        Collections.sort(matched);
+
+        Map<String, String> declarations = new LinkedHashMap<>();
+        for(Rule rule : matched)
+            rule.applyTo(declarations, false);
+        for(Rule rule : matched)
+            rule.applyTo(declarations, true);
+
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, String> entry : declarations.entrySet())
+            sb.append(entry.getKey()).append(':').append(entry.getValue()).append(';');
+
+        return sb.toString();
+    }
+
+    private static List<Rule> collect(List<Rule> candidates, Element element, List<Rule> matched) {
+        if(candidates == null)
+            return matched;
+
+        for(Rule rule : candidates) {
+            if(matches(rule.selector, element)) {
+                if(matched == null)
+                    matched = new ArrayList<>();
+                matched.add(rule);
+            }
+        }
+
+        return matched;
+    }
+
+    private void add(CSSStyleRuleImpl styleRule) {
+        List<Property> properties = ((CSSStyleDeclarationImpl) styleRule.getStyle()).getProperties();
+        if(properties.isEmpty())
+            return;
+
+        String[] names = new String[properties.size()];
+        String[] values = new String[properties.size()];
+        boolean[] important = new boolean[properties.size()];
+
+        for(int i = 0; i < properties.size(); i++) {
+            Property property = properties.get(i);
+            names[i] = property.getName();
+            values[i] = property.getValue() == null ? "" : property.getValue().toString();
+            important[i] = property.isImportant();
+        }
+
+        SelectorList selectors = styleRule.getSelectors();
+        for(int i = 0; i < selectors.getLength(); i++) {
+            Selector selector = selectors.item(i);
+
+            // Pseudo classes and elements can't be inlined
+            if(selector.toString().contains(":"))
+                continue;
+
+            Rule rule = new Rule(selector, specificity(selector), ruleCount++, names, values, important);
+            index(rule);
+        }
+    }
+
+    /**
+     * Index a rule by the most selective key of its rightmost compound selector
+     */
+    private void index(Rule rule) {
+        SimpleSelector subject = subject(rule.selector);
+
+        String id = null;
+        String className = null;
+        String tag = null;
+
+        if(subject instanceof ConditionalSelector) {
+            ConditionalSelector conditional = (ConditionalSelector) subject;
+            id = findCondition(conditional.getCondition(), Condition.SAC_ID_CONDITION);
+            className = findCondition(conditional.getCondition(), Condition.SAC_CLASS_CONDITION);
+            subject = conditional.getSimpleSelector();
+        }
+
+        if(subject instanceof ElementSelector && subject.getSelectorType() == Selector.SAC_ELEMENT_NODE_SELECTOR)
+            tag = ((ElementSelector) subject).getLocalName();
+
+        if(id != null)
+            byId.computeIfAbsent(id, k -> new ArrayList<>()).add(rule);
+        else if(className != null)
+            byClass.computeIfAbsent(className.toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(rule);
+        else if(tag != null)
+            byTag.computeIfAbsent(tag.toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(rule);
+        else
+            universal.add(rule);
+    }
+
+    /**
+     * @return the rightmost compound selector
+     */
+    static SimpleSelector subject(Selector selector) {
+        if(selector instanceof DescendantSelector)
+            return ((DescendantSelector) selector).getSimpleSelector();
+        if(selector instanceof SiblingSelector)
+            return ((SiblingSelector) selector).getSiblingSelector();
+        return (SimpleSelector) selector;
+    }
+
+    static String findCondition(Condition condition, short type) {
+        if(condition.getConditionType() == Condition.SAC_AND_CONDITION) {
+            CombinatorCondition and = (CombinatorCondition) condition;
+            String value = findCondition(and.getFirstCondition(), type);
+            return value != null ? value : findCondition(and.getSecondCondition(), type);
+        }
+
+        if(condition.getConditionType() == type)
+            return ((AttributeCondition) condition).getValue();
+
+        return null;
+    }
+
+    /**
+     * Test an element against a selector, right to left
+     */
+    static boolean matches(Selector selector, Element element) {
+        switch(selector.getSelectorType()) {
+            case Selector.SAC_CONDITIONAL_SELECTOR:
+                ConditionalSelector conditional = (ConditionalSelector) selector;
+                return matches(conditional.getSimpleSelector(), element) &&
+                        matches(conditional.getCondition(), element);
+
+            case Selector.SAC_ELEMENT_NODE_SELECTOR:
+                String name = ((ElementSelector) selector).getLocalName();
+                return name == null || name.equalsIgnoreCase(element.tagName());
+
+            case Selector.SAC_DESCENDANT_SELECTOR: {
+                DescendantSelector descendant = (DescendantSelector) selector;
+                if(!matches(descendant.getSimpleSelector(), element))
+                    return false;
+
+                for(Element parent = parent(element); parent != null; parent = parent(parent)) {
+                    if(matches(descendant.getAncestorSelector(), parent))
+                        return true;
+                }
+                return false;
+            }
+
+            case Selector.SAC_CHILD_SELECTOR: {
+                DescendantSelector child = (DescendantSelector) selector;
+                Element parent = parent(element);
+                return parent != null &&
+                        matches(child.getSimpleSelector(), element) &&
+                        matches(child.getAncestorSelector(), parent);
+            }
+
+            case Selector.SAC_DIRECT_ADJACENT_SELECTOR: {
+                SiblingSelector sibling = (SiblingSelector) selector;
+                Element previous = previousSibling(element);
+                return previous != null &&
+                        matches(sibling.getSiblingSelector(), element) &&
+                        matches(sibling.getSelector(), previous);
+            }
+
+            case Selector.SAC_ANY_NODE_SELECTOR:
+                if(selector instanceof GeneralAdjacentSelectorImpl) {
+                    SiblingSelector sibling = (SiblingSelector) selector;
+                    if(!matches(sibling.getSiblingSelector(), element))
+                        return false;
+
+                    for(Element previous = previousSibling(element); previous != null; previous = previousSibling(previous)) {
+                        if(matches(sibling.getSelector(), previous))
+                            return true;
+                    }
+                    return false;
+                }
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private static boolean matches(Condition condition, Element element) {
+        switch(condition.getConditionType()) {
+            case Condition.SAC_AND_CONDITION:
+                CombinatorCondition and = (CombinatorCondition) condition;
+                return matches(and.getFirstCondition(), element) &&
+                        matches(and.getSecondCondition(), element);
+
+            case Condition.SAC_ID_CONDITION:
+                return ((AttributeCondition) condition).getValue().equals(element.id());
+
+            case Condition.SAC_CLASS_CONDITION:
+                return element.hasClass(((AttributeCondition) condition).getValue());
+
+            case Condition.SAC_ATTRIBUTE_CONDITION: {
+                AttributeCondition attribute = (AttributeCondition) condition;
+                if(!element.hasAttr(attribute.getLocalName()))
+                    return false;
+
+                String expected = attribute.getValue();
+                if(expected == null)
+                    return true;
+
+                String actual = element.attr(attribute.getLocalName()).toLowerCase(Locale.ROOT);
+                expected = expected.toLowerCase(Locale.ROOT);
+
+                if(condition instanceof PrefixAttributeConditionImpl)
+                    return actual.startsWith(expected);
+                if(condition instanceof SuffixAttributeConditionImpl)
+                    return actual.endsWith(expected);
+                if(condition instanceof SubstringAttributeConditionImpl)
+                    return actual.contains(expected);
+                return actual.trim().equals(expected);
+            }
+
+            case Condition.SAC_ONE_OF_ATTRIBUTE_CONDITION: {
+                AttributeCondition attribute = (AttributeCondition) condition;
+                for(String value : element.attr(attribute.getLocalName()).split("\\s+")) {
+                    if(value.equals(attribute.getValue()))
+                        return true;
+                }
+                return false;
+            }
+
+            case Condition.SAC_BEGIN_HYPHEN_ATTRIBUTE_CONDITION: {
+                AttributeCondition attribute = (AttributeCondition) condition;
+                String value = element.attr(attribute.getLocalName());
+                return value.equals(attribute.getValue()) || value.startsWith(attribute.getValue() + "-");
+            }
+
+            default:
+                return false;
+        }
+    }
+
+    private static Element parent(Element element) {
+        Element parent = element.parent();
+        return parent == null || parent instanceof Document ? null : parent;
+    }
+
+    private static Element previousSibling(Element element) {
+        for(Node node = element.previousSibling(); node != null; node = node.previousSibling()) {
+            if(node instanceof Element)
+                return (Element) node;
+        }
+        return null;
+    }
+
+    /**
+     * Calculate the specificity of a selector packed into an int as
+     * ids / classes and attributes / elements
+     */
+    private static int specificity(Selector selector) {
+        switch(selector.getSelectorType()) {
+            case Selector.SAC_CONDITIONAL_SELECTOR:
+                ConditionalSelector conditional = (ConditionalSelector) selector;
+                return specificity(conditional.getSimpleSelector()) + specificity(conditional.getCondition());
+
+            case Selector.SAC_ELEMENT_NODE_SELECTOR:
+            case Selector.SAC_PSEUDO_ELEMENT_SELECTOR:
+                return ((ElementSelector) selector).getLocalName() == null ? 0 : 1;
+
+            case Selector.SAC_DESCENDANT_SELECTOR:
+            case Selector.SAC_CHILD_SELECTOR:
+                DescendantSelector descendant = (DescendantSelector) selector;
+                return specificity(descendant.getAncestorSelector()) + specificity(descendant.getSimpleSelector());
+
+            case Selector.SAC_DIRECT_ADJACENT_SELECTOR:
+            case Selector.SAC_ANY_NODE_SELECTOR:
+                if(selector instanceof SiblingSelector) {
+                    SiblingSelector sibling = (SiblingSelector) selector;
+                    return specificity(sibling.getSelector()) + specificity(sibling.getSiblingSelector());
+                }
+                return 0;
+
+            default:
+                return 0;
+        }
+    }
+
+    private static int specificity(Condition condition) {
+        switch(condition.getConditionType()) {
+            case Condition.SAC_AND_CONDITION:
+                CombinatorCondition and = (CombinatorCondition) condition;
+                return specificity(and.getFirstCondition()) + specificity(and.getSecondCondition());
+
+            case Condition.SAC_ID_CONDITION:
+                return 1 << 16;
+
+            default:
+                return 1 << 8;
+        }
+    }
+
+    /**
+     * A single selector from a style rule with its flattened declarations
+     */
+    private static final class Rule implements Comparable<Rule> {
+        private final Selector selector;
+        private final int specificity;
+        private final int order;
+        private final String[] names;
+        private final String[] values;
+        private final boolean[] important;
+
+        Rule(Selector selector, int specificity, int order, String[] names, String[] values, boolean[] important) {
+            this.selector = selector;
+            this.specificity = specificity;
+            this.order = order;
+            this.names = names;
+            this.values = values;
+            this.important = important;
+        }
+
+        void applyTo(Map<String, String> declarations, boolean importantPass) {
+            for(int i = 0; i < names.length; i++) {
+                if(important[i] == importantPass)
+                    declarations.put(names[i], values[i]);
+            }
+        }
+
+        @Override
+        public int compareTo(Rule other) {
+            if(specificity != other.specificity)
+                return Integer.compare(specificity, other.specificity);
+            return Integer.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.steadystate.css.parser.CSSOMParser;
+import com.steadystate.css.parser.SACParserCSS3;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.w3c.css.sac.Condition;
+import org.w3c.css.sac.ConditionalSelector;
+import org.w3c.css.sac.ElementSelector;
+import org.w3c.css.sac.InputSource;
+import org.w3c.css.sac.Selector;
+import org.w3c.css.sac.SelectorList;
+import org.w3c.css.sac.SimpleSelector;
+
+/**
+ * Unused CSS Rule Pruner
+ *
+ * Removes the rules of a retained stylesheet whose selectors match nothing
+ * in a document. At-rules, such as media queries and font faces, and any
+ * selector containing a ':' are always kept, as are selectors that can't be
+ * parsed. Selectors are matched with the same matcher the inliner uses.
+ *
+ * Class names are deliberately matched without regard to case, so a rule for
+ * .a is kept for class="A". The matcher uses jsoup's Element.hasClass, which
+ * ignores case, and clients render emails without a doctype in quirks mode,
+ * where class selectors ignore case too. Pruning more strictly could remove
+ * rules such a client applies.
+ *
+ * The kept rules are written exactly as they appear in the source, minus
+ * the unused selectors of a selector list; comments between rules are
+ * dropped.
+ *
+ * Instances are immutable once parsed and are shared between documents and
+ * threads through the {@link ParseCache}.
+ */
+final class StylePruner {
+    private final List<Block> blocks = new ArrayList<>();
+
+    private StylePruner() {
+    }
+
+    /**
+     * Split a stylesheet into rules and parse their selectors
+     *
+     * @param css stylesheet text
+     * @return the pruner for the stylesheet
+     */
+    static StylePruner parse(String css) {
+        StylePruner pruner = new StylePruner();
+        CSSOMParser parser = new CSSOMParser(new SACParserCSS3());
+
+        int i = 0;
+        int length = css.length();
+        while(i < length) {
+            i = skipSpaceAndComments(css, i);
+            if(i >= length)
+                break;
+
+            // The prelude runs to the opening brace, or a ';' for statements
+            // like @import
+            int start = i;
+            while(i < length && css.charAt(i) != '{' && css.charAt(i) != ';') {
+                if(css.charAt(i) == '"' || css.charAt(i) == '\'')
+                    i = StyleCompactor.skipString(css, i);
+                else if(css.startsWith("/*", i))
+                    i = skipComment(css, i);
+                else
+                    i++;
+            }
+
+            if(i >= length || css.charAt(i) == ';') {
+                i = Math.min(i + 1, length);
+                pruner.blocks.add(new Block(css.substring(start, i), null));
+                continue;
+            }
+
+            String prelude = css.substring(start, i).trim();
+            int end = skipBlock(css, i);
+
+            if(prelude.startsWith("@"))
+                pruner.blocks.add(new Block(css.substring(start, end), null));
+            else
+                pruner.blocks.add(new Block(css.substring(i, end), selectors(parser, prelude)));
+
+            i = end;
+        }
+
+        return pruner;
+    }
+
+    /**
+     * Write the rules used by a document
+     *
+     * @param index index of the document's elements
+     * @return the pruned stylesheet
+     */
+    String prune(Index index) {
+        StringBuilder sb = new StringBuilder();
+
+        for(Block block : blocks) {
+            if(block.selectors == null) {
+                sb.append(block.text);
+                continue;
+            }
+
+            boolean first = true;
+            for(Entry entry : block.selectors) {
+                if(entry.selector == null || index.matches(entry.selector)) {
+                    if(!first)
+                        sb.append(',');
+                    sb.append(entry.text);
+                    first = false;
+                }
+            }
+
+            if(!first)
+                sb.append(block.text);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Parse the selectors of a rule
+     *
+     * @return the selectors, with a null selector for those always kept
+     */
+    private static List<Entry> selectors(CSSOMParser parser, String prelude) {
+        List<Entry> entries = new ArrayList<>();
+
+        for(String text : StyleCompactor.split(prelude, ',')) {
+            text = text.trim();
+            if(text.isEmpty())
+                continue;
+
+            Selector selector = null;
+            if(text.indexOf(':') < 0) {
+                try {
+                    SelectorList list = parser.parseSelectors(new InputSource(new StringReader(text)));
+                    if(list != null && list.getLength() == 1)
+                        selector = list.item(0);
+                } catch(IOException | RuntimeException ex) {
+                    // Kept as written
+                }
+            }
+
+            entries.add(new Entry(text, selector));
+        }
+
+        return entries;
+    }
+
+    private static int skipSpaceAndComments(String css, int i) {
+        while(i < css.length()) {
+            if(Character.isWhitespace(css.charAt(i)))
+                i++;
+            else if(css.startsWith("/*", i))
+                i = skipComment(css, i);
+            else
+                break;
+        }
+        return i;
+    }
+
+    private static int skipComment(String css, int start) {
+        int end = css.indexOf("*/", start + 2);
+        return end < 0 ? css.length() : end + 2;
+    }
+
+    /**
+     * @return the index after the brace closing the one at open
+     */
+    private static int skipBlock(String css, int open) {
+        int depth = 0;
+        for(int i = open; i < css.length(); i++) {
+            char c = css.charAt(i);
+            if(c == '"' || c == '\'') {
+                i = StyleCompactor.skipString(css, i) - 1;
+            } else if(css.startsWith("/*", i)) {
+                i = skipComment(css, i) - 1;
+            } else if(c == '{') {
+                depth++;
+            } else if(c == '}' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return css.length();
+    }
+
+    /**
+     * Elements of a document indexed by id, class and tag
+     *
+     * Class names and tags are folded to lower case, like the inliner's rule
+     * index, so a class's candidates include every element the matcher
+     * accepts for it.
+     */
+    static final class Index {
+        private final Map<String, List<Element>> byId = new HashMap<>();
+        private final Map<String, List<Element>> byClass = new HashMap<>();
+        private final Map<String, List<Element>> byTag = new HashMap<>();
+        private final List<Element> all = new ArrayList<>();
+
+        Index(Document doc) {
+            for(Element element : doc.getAllElements()) {
+                if(element instanceof Document)
+                    continue;
+
+                all.add(element);
+                byTag.computeIfAbsent(element.tagName().toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(element);
+
+                if(element.hasAttr("id"))
+                    byId.computeIfAbsent(element.id(), k -> new ArrayList<>()).add(element);
+
+                if(element.hasAttr("class")) {
+                    for(String name : element.classNames())
+                        byClass.computeIfAbsent(name.toLowerCase(Locale.ROOT), k -> new ArrayList<>()).add(element);
+                }
+            }
+        }
+
+        /**
+         * @return true if any element matches the selector
+         */
+        boolean matches(Selector selector) {
+            for(Element element : candidates(selector)) {
+                if(StyleInliner.matches(selector, element))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the elements with the most selective key of the rightmost
+         * compound selector
+         */
+        private List<Element> candidates(Selector selector) {
+            SimpleSelector subject = StyleInliner.subject(selector);
+
+            if(subject instanceof ConditionalSelector) {
+                ConditionalSelector conditional = (ConditionalSelector) subject;
+
+                String id = StyleInliner.findCondition(conditional.getCondition(), Condition.SAC_ID_CONDITION);
+                if(id != null)
+                    return byId.getOrDefault(id, Collections.emptyList());
+
+                String className = StyleInliner.findCondition(conditional.getCondition(), Condition.SAC_CLASS_CONDITION);
+                if(className != null)
+                    return byClass.getOrDefault(className.toLowerCase(Locale.ROOT), Collections.emptyList());
+
+                subject = conditional.getSimpleSelector();
+            }
+
+            if(subject instanceof ElementSelector && subject.getSelectorType() == Selector.SAC_ELEMENT_NODE_SELECTOR) {
+                String tag = ((ElementSelector) subject).getLocalName();
+                if(tag != null)
+                    return byTag.getOrDefault(tag.toLowerCase(Locale.ROOT), Collections.emptyList());
+            }
+
+            return all;
+        }
+    }
+
+    /**
+     * A rule body, or an at-rule or statement kept as is
+     */
+    private static final class Block {
+        private final String text;
+        private final List<Entry> selectors;
+
+        Block(String text, List<Entry> selectors) {
+            this.text = text;
+            this.selectors = selectors;
+        }
+    }
+
+    /**
+     * A single selector of a rule and its source text
+     */
+    private static final class Entry {
+        private final String text;
+        private final Selector selector;
+
+        Entry(String text, Selector selector) {
+            this.text = text;
+            this.selector = selector;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.htmlparser.jericho.CharacterReference;
+import net.htmlparser.jericho.EndTag;
+import net.htmlparser.jericho.Segment;
+import net.htmlparser.jericho.StartTag;
+import net.htmlparser.jericho.StreamedSource;
+import net.htmlparser.jericho.Tag;
+
+/**
+ * Template Metadata
+ *
+ * The title, meta name/content pairs and template reference of an email,
+ * read without building a DOM. The source is tokenized as a stream and the
+ * scan stops at the end of the head, so the cost doesn't depend on the size
+ * of the body.
+ *
+ * Instances are immutable.
+ */
+public final class TemplateMetadata {
+    private static final String HTML_TAG = "html";
+    private static final String HEAD_TAG = "head";
+    private static final String BODY_TAG = "body";
+    private static final String TITLE_TAG = "title";
+    private static final String META_TAG = "meta";
+    private static final String META_NAME_ATTR = "name";
+    private static final String META_CONTENT_ATTR = "content";
+
+    private final String title;
+    private final Map<String, String> meta;
+    private final String template;
+
+    private TemplateMetadata(String title, Map<String, String> meta, String template) {
+        this.title = title;
+        this.meta = Collections.unmodifiableMap(meta);
+        this.template = template;
+    }
+
+    /**
+     * @return the document title with whitespace collapsed, "" if there is none
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the name and content of every meta element in the head
+     */
+    public Map<String, String> getMeta() {
+        return meta;
+    }
+
+    /**
+     * @return the template reference, relative to the source, or null if the
+     * email doesn't use a template
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Scan a document up to the end of its head
+     *
+     * @param input UTF-8 encoded html, not closed
+     * @return the metadata
+     * @throws IOException reading the input
+     */
+    static TemplateMetadata scan(InputStream input) throws IOException {
+        StringBuilder title = null;
+        boolean inTitle = false;
+        Map<String, String> meta = new LinkedHashMap<>();
+        String template = null;
+
+        StreamedSource source = new StreamedSource(new InputStreamReader(input, Charsets.UTF_8));
+        source.setLogger(null);
+        source.setCoalescing(true);
+
+        // Segments are only valid until the next one is read, so copy
+        // anything worth keeping straight away
+        for(Segment segment : source) {
+            if(segment instanceof StartTag) {
+                StartTag tag = (StartTag) segment;
+                String name = tag.getName();
+
+                if(BODY_TAG.equals(name))
+                    break;
+
+                if(HTML_TAG.equals(name)) {
+                    template = tag.getAttributeValue(TemplateProcessor.TEMPLATE_ATTR);
+                } else if(TITLE_TAG.equals(name) && title == null) {
+                    title = new StringBuilder();
+                    inTitle = true;
+                } else if(META_TAG.equals(name)) {
+                    String metaName = tag.getAttributeValue(META_NAME_ATTR);
+                    String content = tag.getAttributeValue(META_CONTENT_ATTR);
+                    if(metaName != null && content != null)
+                        meta.put(metaName, content);
+                }
+            } else if(segment instanceof EndTag) {
+                String name = ((EndTag) segment).getName();
+
+                if(HEAD_TAG.equals(name))
+                    break;
+
+                if(TITLE_TAG.equals(name))
+                    inTitle = false;
+            } else if(inTitle && !(segment instanceof Tag)) {
+                title.append(segment);
+            }
+        }
+
+        return new TemplateMetadata(
+                title == null ? "" : CharacterReference.decodeCollapseWhiteSpace(title).trim(),
+                meta,
+                template);
+    }
+}
@@ -24,38 +24,44 @@
 package ws.doerr.projects.emailtemplates;
 
 import com.google.common.base.Charsets;
-import com.steadystate.css.parser.CSSOMParser;
-import com.steadystate.css.parser.SACParserCSS3;
+import com.google.common.base.Utf8;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingInputStream;
 import org.jsoup.Jsoup;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
-import java.nio.file.FileSystems;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jsoup.nodes.Comment;
+import org.jsoup.nodes.DataNode;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
 import org.jsoup.parser.Parser;
 import org.jsoup.parser.Tag;
-import org.jsoup.select.Elements;
 import org.jsoup.select.NodeTraversor;
-import org.w3c.css.sac.InputSource;
-import org.w3c.dom.css.CSSRule;
-import org.w3c.dom.css.CSSStyleDeclaration;
-import org.w3c.dom.css.CSSStyleRule;
-import org.w3c.dom.css.CSSStyleSheet;
+import org.jsoup.select.NodeVisitor;
 
 /**
  * HTML Email Template Processor
@@ -67,12 +73,16 @@ import org.w3c.dom.css.CSSStyleSheet;
  *
  * Templates loosely based on JSF concepts
  *
+ * Instances are thread safe. The configuration is fixed at construction and
+ * each thread parses with its own jsoup parser, so a single processor can
+ * serve concurrent process calls.
  */
 public class TemplateProcessor {
     private static final Logger LOG = Logger.getLogger(TemplateProcessor.class.getName());
 
     private static final String STYLE_TAG = "style";
     private static final String LINK_INLINE_ATTR = "ui:inline";
+    private static final String LINK_PRUNE_ATTR = "ui:prune";
 
     private static final String LINK_TAG = "LINK";
     private static final String LINK_REL_ATTR = "rel";
@@ -80,18 +90,36 @@ public class TemplateProcessor {
     private static final String LINK_REL_IMPORT = "import";
     private static final String LINK_HREF_ATTR = "href";
 
-    private static final String PARAMETER_TAG = "parameter";
+    static final String PARAMETER_TAG = "parameter";
     private static final String PARAMETER_NAME_ATTR = "name";
     private static final String PARAMETER_ATTR_NAME = "attr";
 
-    private static final String TEMPLATE_ATTR = "ui:template";
+    static final String TEMPLATE_ATTR = "ui:template";
     private static final String SECTION_TAG = "ui:section";
     private static final String INCLUDE_TAG = "ui:include";
 
-    private final Parser parser;
+    private final ParseCache cache;
+    private final OutputCache outputCache;
+    private final TemplateResourceLoader loader;
+    private final HashCode configuration;
 
-    private final Map<String, String> addMeta = new HashMap<>();
+    // jsoup's tree builder keeps per-parse state, so each thread gets its own.
+    // A parser is only a few small objects, so threads that run a single
+    // render, such as virtual threads, lose little by creating one each
+    private final ThreadLocal<Parser> parsers = ThreadLocal.withInitial(Parser::xmlParser);
+
+    // Output encoder buffers, reused across documents. They are pooled rather
+    // than kept per thread so short lived threads reuse them too; the pool
+    // grows to the peak number of concurrent stream writes
+    private final Queue<EncodingWriter> writers = new ConcurrentLinkedQueue<>();
+
+    private final Map<String, String> addMeta;
     private final boolean removeComments;
+    private final boolean plainText;
+    private final boolean fuseStyles;
+
+    private final ProcessorMetrics metrics;
+    private final List<ProcessorListener> listeners = new CopyOnWriteArrayList<>();
 
     /**
      * Create the default Processor
@@ -109,9 +137,150 @@ public class TemplateProcessor {
      * @param removeComments if true, remove any html comments from the output
      */
     public TemplateProcessor(Map<String, String> meta, boolean removeComments) {
-        addMeta.putAll(meta);
+        this(meta, removeComments, new ParseCache());
+    }
+
+    /**
+     * Create a processor with properties and a shared parse cache
+     *
+     * @param meta meta tags to add to the template header
+     * @param removeComments if true, remove any html comments from the output
+     * @param cache cache of parsed templates, fragments and stylesheets. May
+     * be shared with other processors
+     */
+    public TemplateProcessor(Map<String, String> meta, boolean removeComments, ParseCache cache) {
+        this(meta, removeComments, cache, null);
+    }
+
+    /**
+     * Create a processor with properties, a shared parse cache and a
+     * persistent output cache
+     *
+     * @param meta meta tags to add to the template header
+     * @param removeComments if true, remove any html comments from the output
+     * @param cache cache of parsed templates, fragments and stylesheets. May
+     * be shared with other processors
+     * @param outputCache cache of processed emails, used when processing
+     * from a source file. May be shared with other processors, or null
+     */
+    public TemplateProcessor(Map<String, String> meta, boolean removeComments, ParseCache cache, OutputCache outputCache) {
+        this(meta, removeComments, cache, outputCache, new FileSystemResourceLoader());
+    }
+
+    /**
+     * Create a processor reading its resources through a loader
+     *
+     * @param meta meta tags to add to the template header
+     * @param removeComments if true, remove any html comments from the output
+     * @param cache cache of parsed templates, fragments and stylesheets. May
+     * be shared with other processors
+     * @param outputCache cache of processed emails, used when processing
+     * from a source file. May be shared with other processors, or null
+     * @param loader loader every source, template, fragment and stylesheet
+     * is read through
+     */
+    public TemplateProcessor(Map<String, String> meta, boolean removeComments, ParseCache cache, OutputCache outputCache,
+            TemplateResourceLoader loader) {
+        this(meta, removeComments, cache, outputCache, loader, false);
+    }
+
+    /**
+     * Create a processor that can also render the plain text alternative
+     *
+     * @param meta meta tags to add to the template header
+     * @param removeComments if true, remove any html comments from the output
+     * @param cache cache of parsed templates, fragments and stylesheets. May
+     * be shared with other processors
+     * @param outputCache cache of processed emails, used when processing
+     * from a source file. May be shared with other processors, or null
+     * @param loader loader every source, template, fragment and stylesheet
+     * is read through
+     * @param plainText if true, render the plain text alternative while
+     * writing the html, see {@link ProcessorContext#getText()}
+     */
+    public TemplateProcessor(Map<String, String> meta, boolean removeComments, ParseCache cache, OutputCache outputCache,
+            TemplateResourceLoader loader, boolean plainText) {
+        this(meta, removeComments, cache, outputCache, loader, plainText, false);
+    }
+
+    /**
+     * Create a processor that can also emit the inline styles as it writes
+     *
+     * With fused styles the computed inline styles are written out by the
+     * minifier in place of each element's style and class attributes,
+     * rather than applied to the document before it is written. The output
+     * is the same either way.
+     *
+     * @param meta meta tags to add to the template header
+     * @param removeComments if true, remove any html comments from the output
+     * @param cache cache of parsed templates, fragments and stylesheets. May
+     * be shared with other processors
+     * @param outputCache cache of processed emails, used when processing
+     * from a source file. May be shared with other processors, or null
+     * @param loader loader every source, template, fragment and stylesheet
+     * is read through
+     * @param plainText if true, render the plain text alternative while
+     * writing the html, see {@link ProcessorContext#getText()}
+     * @param fuseStyles if true, emit the inline styles while writing the
+     * html instead of applying them to the document first
+     */
+    public TemplateProcessor(Map<String, String> meta, boolean removeComments, ParseCache cache, OutputCache outputCache,
+            TemplateResourceLoader loader, boolean plainText, boolean fuseStyles) {
+        this.addMeta = Collections.unmodifiableMap(new LinkedHashMap<>(meta));
         this.removeComments = removeComments;
-        parser = Parser.xmlParser();
+        this.plainText = plainText;
+        this.fuseStyles = fuseStyles;
+        this.cache = cache;
+        this.outputCache = outputCache;
+        this.loader = loader;
+        this.configuration = fingerprint(addMeta, removeComments, plainText, fuseStyles);
+
+        metrics = new ProcessorMetrics(cache);
+        listeners.add(metrics);
+    }
+
+    /**
+     * @return the cache of parsed templates, fragments and stylesheets
+     */
+    public ParseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the loader resources are read through
+     */
+    public TemplateResourceLoader getLoader() {
+        return loader;
+    }
+
+    /**
+     * @return the cache of processed emails, or null if there is none
+     */
+    public OutputCache getOutputCache() {
+        return outputCache;
+    }
+
+    /**
+     * @return the aggregated metrics of every render by this processor
+     */
+    public ProcessorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Register a listener notified after every render
+     *
+     * @param listener the listener
+     */
+    public void addListener(ProcessorListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener a previously registered listener
+     */
+    public void removeListener(ProcessorListener listener) {
+        listeners.remove(listener);
     }
 
     /**
@@ -127,20 +296,67 @@ public class TemplateProcessor {
 
     /**
      * Process a source file to an output path
+     *
+     * The output is streamed to the destination file. When a destination is
+     * given the html isn't kept in memory; {@link ProcessorContext#getHtml()}
+     * reads it back from the destination on demand.
+     *
+     * If the processor has an output cache and the source and everything it
+     * depends on are unchanged, the stored result is returned without
+     * processing anything.
+     *
      * @param source source file path
      * @param destination destination directory path
      * @return the resulting context from the processing operation
      * @throws Exception resulting from the processing of the source
      */
     public ProcessorContext process(final Path source, final Path destination) throws Exception {
-        try (InputStream input = Files.newInputStream(source)) {
-            ProcessorContext context = process(input, source.getParent());
+        return render(context -> {
+            // Note the version of the source before anything reads it
+            context.addVersion(source, loader.getVersion(source));
+
+            OutputCache.Lookup lookup = outputCache == null ? null : outputCache.lookup(source, configuration, loader);
+            if(lookup != null && lookup.load(context)) {
+                if(destination != null)
+                    Files.write(destination, context.getHtml().getBytes(Charsets.UTF_8));
+                return;
+            }
 
-            if(destination != null)
-                Files.write(destination, context.getHtml().getBytes(Charsets.UTF_8));
+            Built built;
+            try (InputStream input = loader.open(source)) {
+                built = build(input, source.getParent(), context);
+            }
 
-            return context;
-        }
+            if(destination == null) {
+                retain(built, context);
+            } else {
+                try (OutputStream output = Files.newOutputStream(destination)) {
+                    write(built, output, context);
+                }
+
+                context.setHtml(() -> {
+                    try {
+                        return new String(Files.readAllBytes(destination), Charsets.UTF_8);
+                    } catch(IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            }
+
+            if(lookup != null)
+                lookup.store(context);
+        });
+    }
+
+    /**
+     * Process a source file into a template ready for mail merge
+     *
+     * @param source path of the file to process
+     * @return the compiled template
+     * @throws Exception resulting from the processing of the source
+     */
+    public CompiledTemplate compile(final Path source) throws Exception {
+        return CompiledTemplate.compile(process(source).getHtml());
     }
 
     /**
@@ -151,21 +367,133 @@ public class TemplateProcessor {
      * @throws Exception resulting from the processing of the source
      */
     public ProcessorContext process(final InputStream input, Path relative) throws Exception {
+        return render(context -> retain(build(input, relative, context), context));
+    }
+
+    /**
+     * Process a source input stream directly to an output stream
+     *
+     * The html is encoded as UTF-8 straight into the output and is not kept
+     * in the returned context. The output is flushed but not closed.
+     *
+     * @param input input source stream
+     * @param relative relative path for opening included files
+     * @param output destination for the html
+     * @return the resulting context from the processing operation
+     * @throws Exception resulting from the processing of the source
+     */
+    public ProcessorContext process(final InputStream input, Path relative, OutputStream output) throws Exception {
+        return render(context -> write(build(input, relative, context), output, context));
+    }
+
+    /**
+     * Process a source input stream directly to a channel
+     *
+     * The html is encoded as UTF-8 straight into the channel and is not kept
+     * in the returned context. The channel is not closed.
+     *
+     * @param input input source stream
+     * @param relative relative path for opening included files
+     * @param output destination for the html
+     * @return the resulting context from the processing operation
+     * @throws Exception resulting from the processing of the source
+     */
+    public ProcessorContext process(final InputStream input, Path relative, WritableByteChannel output) throws Exception {
+        return render(context -> encode(build(input, relative, context), writer().open(output), context));
+    }
+
+    /**
+     * Hash everything in the configuration that affects the output
+     *
+     * @param meta meta tags added to the template header
+     * @param removeComments whether html comments are removed
+     * @param plainText whether the plain text alternative is rendered
+     * @param fuseStyles whether the inline styles are written by the minifier
+     * @return the configuration fingerprint
+     */
+    private static HashCode fingerprint(Map<String, String> meta, boolean removeComments, boolean plainText,
+            boolean fuseStyles) {
+        Hasher hasher = Hashing.sha256().newHasher()
+                .putBoolean(removeComments)
+                .putBoolean(plainText)
+                .putBoolean(fuseStyles)
+                .putInt(meta.size());
+
+        for(Entry<String, String> entry : meta.entrySet()) {
+            hasher.putInt(entry.getKey().length()).putString(entry.getKey(), Charsets.UTF_8);
+            hasher.putInt(entry.getValue().length()).putString(entry.getValue(), Charsets.UTF_8);
+        }
+
+        return hasher.hash();
+    }
+
+    /**
+     * Run a render and notify the listeners of the outcome
+     *
+     * @param render the render
+     * @return the context of the completed render
+     * @throws Exception resulting from the render
+     */
+    private ProcessorContext render(Render render) throws Exception {
+        ProcessorContext context = new ProcessorContext();
+        long start = System.nanoTime();
+
+        try {
+            render.render(context);
+            context.setLatencyNanos(System.nanoTime() - start);
+        } catch(Exception ex) {
+            context.setLatencyNanos(System.nanoTime() - start);
+            for(ProcessorListener listener : listeners) {
+                try {
+                    listener.failed(context, ex);
+                } catch(RuntimeException lex) {
+                    LOG.log(Level.WARNING, "Processor listener failed", lex);
+                }
+            }
+            throw ex;
+        }
+
+        for(ProcessorListener listener : listeners) {
+            try {
+                listener.processed(context);
+            } catch(RuntimeException ex) {
+                LOG.log(Level.WARNING, "Processor listener failed", ex);
+            }
+        }
+
+        return context;
+    }
+
+    /**
+     * Parse a source document and run it through the template, include and
+     * inlining steps
+     *
+     * @param input input source stream
+     * @param relative relative path for opening included files
+     * @param context processor context
+     * @return the final document and its styles, ready for serialization
+     * @throws Exception resulting from the processing of the source
+     */
+    private Built build(final InputStream input, Path relative, ProcessorContext context) throws Exception {
         // If relative is null, default to the current working directory
         if(relative == null)
             relative = Paths.get(".");
 
-        ProcessorContext context = new ProcessorContext();
+        long start = System.nanoTime();
 
         // Parse the source document
+        CountingInputStream counted = new CountingInputStream(input);
         Document doc = Jsoup.parse(
-                input,
+                counted,
                 Charsets.UTF_8.name(),
                 "",
-                parser);
+                parsers.get());
+        context.setBytesIn(counted.getCount());
+        start = context.time(ProcessorContext.Phase.Parse, start);
 
         // Process linked documents
-        while(processLinks(doc, relative.toString(), context)) {}
+        processLinks(doc, relative.toString(), context);
+        start = context.time(ProcessorContext.Phase.Links, start);
 
         // Check for template use
         Element html = doc.getElementsByTag("html").first();
@@ -173,42 +501,50 @@ public class TemplateProcessor {
             // The document uses a template, parse it.
             Path tmpl = relative.resolve(html.attr(TEMPLATE_ATTR));
 
-            try (InputStream tinput = Files.newInputStream(tmpl)) {
-                Document template = Jsoup.parse(
-                        tinput,
-                        Charsets.UTF_8.name(),
-                        "",
-                        parser);
+            // Mark the dependency, even if the template can't be loaded, so
+            // creating it later makes the output stale
+            context.addDependency(tmpl, Dependency.DependencyType.Template);
 
-                // Mark the dependency
-                context.addDependency(tmpl, Dependency.DependencyType.Template);
+            try {
+                Document template = cache.getDocument(tmpl, parsers.get(), loader, context);
 
                 // Move the head items from the document into the template
-                template.head().prepend(doc.head().html());
+                template.head().insertChildren(0, new ArrayList<>(doc.head().childNodes()));
+
+                // Index the insert points in the template
+                Map<String, Deque<Element>> points = index(template, INCLUDE_TAG, "section");
 
                 // Process the ui:section source tags
                 doc.getElementsByTag(SECTION_TAG).forEach(section -> {
-                    String name = section.attr("name");
-
-                    // Find the corresponding insert points in the template
-                    Element match = find(template, INCLUDE_TAG, "section", name);
+                    // Find the corresponding insert point in the template
+                    Deque<Element> matches = points.get(section.attr("name"));
+                    Element match = matches == null ? null : matches.poll();
                     if(match != null) {
-                        // Copy the content to the template and remove the insert tag
-                        match.after(section.html());
+                        // Move the content to the template and remove the insert tag
+                        match.parent().insertChildren(match.siblingIndex(), new ArrayList<>(section.childNodes()));
                         match.remove();
                     }
                 });
 
                 // The template becomes the new document
                 doc = template;
+                start = context.time(ProcessorContext.Phase.Template, start);
 
                 // Process any linked documents from the template
-                while(processLinks(doc, relative.toString(), context)) {}
-            } catch(Exception ex) {}
+                processLinks(doc, relative.toString(), context);
+                start = context.time(ProcessorContext.Phase.Links, start);
+            } catch(Exception ex) {
+                start = context.time(ProcessorContext.Phase.Template, start);
+            }
         }
 
-        // Inline the styles
-        extractAndApplyStyles(doc);
+        // Inline the styles, or compute them to be written out with the html
+        InlineStyles styles = InlineStyles.EMPTY;
+        if(fuseStyles)
+            styles = extractStyles(doc, context);
+        else
+            extractAndApplyStyles(doc, context);
+        start = context.time(ProcessorContext.Phase.Styles, start);
 
         // Add any additional meta tags
         for(Entry<String, String> meta : addMeta.entrySet()) {
@@ -219,14 +555,115 @@ public class TemplateProcessor {
         extractMeta(doc, context);
 
         context.setTitle(doc.title());
+        context.time(ProcessorContext.Phase.Template, start);
 
-        // Use a custom node visitor to extract minified html
-        MinifyHtmlVisitor visitor = new MinifyHtmlVisitor(removeComments);
-        new NodeTraversor(visitor).traverse(doc);
+        return new Built(doc, styles);
+    }
 
-        context.setHtml(visitor.getHtml());
+    /**
+     * Write the minified html for a document into the context
+     *
+     * @param built final document and styles
+     * @param context context receiving the html, output size and timing
+     * @throws IOException writing the output
+     */
+    private void retain(Built built, ProcessorContext context) throws IOException {
+        long start = System.nanoTime();
+        StringBuilder sb = new StringBuilder();
+        write(built, sb, context);
+
+        String html = sb.toString();
+        context.setHtml(() -> html);
+        context.setBytesOut(Utf8.encodedLength(html));
+        context.time(ProcessorContext.Phase.Write, start);
+    }
 
-        return context;
+    /**
+     * Write the minified html for a document to an output stream as UTF-8
+     *
+     * @param built final document and styles
+     * @param output destination for the html
+     * @param context context receiving the output size and timing
+     * @throws IOException writing the output
+     */
+    private void write(Built built, OutputStream output, ProcessorContext context) throws IOException {
+        encode(built, writer().open(output), context);
+    }
+
+    /**
+     * @return an encoder from the pool, or a new one if the pool is empty
+     */
+    private EncodingWriter writer() {
+        EncodingWriter writer = writers.poll();
+        return writer == null ? new EncodingWriter() : writer;
+    }
+
+    /**
+     * Write the minified html for a document through an opened encoder, and
+     * return the encoder to the pool
+     *
+     * @param built final document and styles
+     * @param writer encoder opened against the destination
+     * @param context context receiving the output size and timing
+     * @throws IOException writing the output
+     */
+    private void encode(Built built, EncodingWriter writer, ProcessorContext context) throws IOException {
+        long start = System.nanoTime();
+        try {
+            try {
+                write(built, writer, context);
+            } finally {
+                writer.finish();
+            }
+            context.setBytesOut(writer.getByteCount());
+        } finally {
+            writers.offer(writer);
+        }
+        context.time(ProcessorContext.Phase.Write, start);
+    }
+
+    /**
+     * Write the minified html for a document
+     *
+     * When the plain text alternative is enabled it is rendered into the
+     * context in the same traversal.
+     *
+     * @param built final document and styles
+     * @param output destination for the html
+     * @param context context receiving the plain text
+     * @throws IOException writing the output
+     */
+    private void write(Built built, Appendable output, ProcessorContext context) throws IOException {
+        // Use a custom node visitor to extract minified html, emitting any
+        // computed inline styles as it goes
+        MinifyHtmlVisitor html = new MinifyHtmlVisitor(output, removeComments, built.styles);
+        Document doc = built.doc;
+
+        try {
+            if(!plainText) {
+                new NodeTraversor(html).traverse(doc);
+                return;
+            }
+
+            PlainTextVisitor text = new PlainTextVisitor();
+            new NodeTraversor(new NodeVisitor() {
+                @Override
+                public void head(Node node, int depth) {
+                    html.head(node, depth);
+                    text.head(node, depth);
+                }
+
+                @Override
+                public void tail(Node node, int depth) {
+                    html.tail(node, depth);
+                    text.tail(node, depth);
+                }
+            }).traverse(doc);
+
+            context.setText(text.getText());
+        } catch(UncheckedIOException ex) {
+            throw ex.getCause();
+        }
     }
 
     /**
@@ -235,19 +672,25 @@ public class TemplateProcessor {
      * @return the title of the document as a String
      */
     public String getTitle(Path source) {
-        Document doc;
-        try (InputStream input = new FileInputStream(source.toFile())) {
-            doc = Jsoup.parse(
-                    input,
-                    Charsets.UTF_8.name(),
-                    "",
-                    parser);
-
-            return doc.title();
+        try {
+            return getMetadata(source).getTitle();
         } catch(IOException ex) {
             return "";
         }
+    }
 
+    /**
+     * Read the title, meta data and template reference of a document
+     *
+     * Only the head of the document is scanned and the result is cached
+     * until the file changes.
+     *
+     * @param source path to the source file
+     * @return the document metadata
+     * @throws IOException reading the file
+     */
+    public TemplateMetadata getMetadata(Path source) throws IOException {
+        return cache.getMetadata(source, loader);
     }
 
     /**
@@ -268,91 +711,147 @@ public class TemplateProcessor {
 
     /**
      * Process any links in the document
+     *
+     * Stylesheets and imports are expanded in a single pass, inside out, so
+     * imports nested in the parameters of another import are expanded before
+     * it. Imported fragments are expanded recursively relative to their own
+     * location. An import of a fragment that is already being expanded is
+     * reported and left in place, and a fragment imported again with the same
+     * parameters is copied from its first expansion.
+     *
      * @param doc base parsed document
      * @param basePath base path for relative referenced includes
      * @param context processor context
      * @return true if files were included
      */
-    private boolean processLinks(Element doc, String basePath, ProcessorContext context) {
+    boolean processLinks(Element doc, String basePath, ProcessorContext context) {
+        return processLinks(doc, basePath, context, new Includes());
+    }
+
+    private boolean processLinks(Element element, String basePath, ProcessorContext context, Includes includes) {
         boolean processed = false;
 
-        for(Element element : doc.getElementsByTag(LINK_TAG)) {
-            // Determine the element type
-            boolean isStylesheet = LINK_REL_STYLE.equals(element.attr(LINK_REL_ATTR));
-            boolean isImport = LINK_REL_IMPORT.equals(element.attr(LINK_REL_ATTR));
+        // Children first, the list is copied as expanding a child replaces it
+        for(Element child : new ArrayList<>(element.children()))
+            processed |= processLinks(child, basePath, context, includes);
 
-            // We only support Stylesheets and html imports
-            if(!isStylesheet && !isImport)
-                continue;
+        if(LINK_TAG.equalsIgnoreCase(element.tagName()))
+            processed |= processLink(element, basePath, context, includes);
 
-            // Have to have an HREF
-            String elementPath = element.attr(LINK_HREF_ATTR);
-            if(elementPath == null) {
-                LOG.log(Level.WARNING, "Missing required 'href' attribute for include tag {0}", element.text());
-                continue;
-            }
+        return processed;
+    }
 
-            try {
-                // We need to process the import tags from the inside out so we
-                // process this tag until any contained tags are processed
-                if(isImport && hasChildTag(element, LINK_TAG))
-                    continue;
-
-                // Grab the source from the reference
-                Path path = FileSystems.getDefault().getPath(basePath, elementPath);
-
-                element.removeAttr(LINK_REL_ATTR);
-                element.removeAttr(LINK_HREF_ATTR);
-
-                if(isStylesheet) {
-                    // Including a stylesheet
-                    Element style = new Element(Tag.valueOf("style"), element.baseUri(), element.attributes());
-                    style.text(new String(Files.readAllBytes(path), Charsets.UTF_8));
-                    element.after(style);
-
-                    context.addDependency(path, element.hasAttr(LINK_INLINE_ATTR) ?
-                            Dependency.DependencyType.StyleInline :
-                            Dependency.DependencyType.Style);
-                } else {
-                    Map<String, String> parameters = new HashMap<>();
-
-                    // Fetch any include parameters
-                    for(Element child : element.children()) {
-                        if(PARAMETER_TAG.equals(child.tagName())) {
-                            if(!child.hasAttr(PARAMETER_NAME_ATTR))
-                                LOG.log(Level.WARNING, "Missing 'name' attribute for include parameter in {0}", elementPath);
-                            else {
-                                parameters.put(child.attr(PARAMETER_NAME_ATTR), child.html());
-                            }
+    private boolean processLink(Element element, String basePath, ProcessorContext context, Includes includes) {
+        // Determine the element type
+        boolean isStylesheet = LINK_REL_STYLE.equals(element.attr(LINK_REL_ATTR));
+        boolean isImport = LINK_REL_IMPORT.equals(element.attr(LINK_REL_ATTR));
+
+        // We only support Stylesheets and html imports
+        if(!isStylesheet && !isImport)
+            return false;
+
+        // Have to have an HREF
+        String elementPath = element.attr(LINK_HREF_ATTR);
+        if(elementPath == null) {
+            LOG.log(Level.WARNING, "Missing required 'href' attribute for include tag {0}", element.text());
+            return false;
+        }
+
+        try {
+            // Grab the source from the reference
+            Path path = Paths.get(basePath, elementPath);
+
+            element.removeAttr(LINK_REL_ATTR);
+            element.removeAttr(LINK_HREF_ATTR);
+
+            // Dependencies are recorded before loading, so a missing file
+            // is tracked too and creating it later makes the output stale
+            if(isStylesheet) {
+                // Including a stylesheet
+                context.addDependency(path, element.hasAttr(LINK_INLINE_ATTR) ?
+                        Dependency.DependencyType.StyleInline :
+                        Dependency.DependencyType.Style);
+
+                Element style = new Element(Tag.valueOf("style"), element.baseUri(), element.attributes());
+                style.text(cache.getStylesheet(path, loader, context));
+                element.after(style);
+            } else {
+                context.addDependency(path, Dependency.DependencyType.Fragment);
+
+                Map<String, IncludeParameter> parameters = new HashMap<>();
+
+                // Fetch any include parameters, taking over their content
+                for(Element child : element.children()) {
+                    if(PARAMETER_TAG.equals(child.tagName())) {
+                        if(!child.hasAttr(PARAMETER_NAME_ATTR))
+                            LOG.log(Level.WARNING, "Missing 'name' attribute for include parameter in {0}", elementPath);
+                        else {
+                            parameters.put(child.attr(PARAMETER_NAME_ATTR), new IncludeParameter(child));
                         }
                     }
+                }
 
-                    // Process the include file
-                    try (InputStream input = new FileInputStream(path.toFile())) {
-                        Element inserted = Jsoup.parse(input, Charsets.UTF_8.name(), "", parser);
+                // Process the include file
+                List<Node> inserted = include(path, parameters, context, includes);
+                element.parent().insertChildren(element.siblingIndex() + 1, inserted);
+            }
 
-                        if(!parameters.isEmpty()) {
-                            applyParameters(inserted, parameters);
-                            handleConditionalComments(inserted, parameters);
-                        }
+            element.remove();
 
-                        processLinks(inserted, path.getParent().toString(), context);
-                        element.after(inserted);
-                        inserted.unwrap();
-                    }
+            return true;
+        } catch(Exception ex) {
+            LOG.log(Level.WARNING, "Exception processing tag " + element.text(), ex);
+            return false;
+        }
+    }
 
-                    context.addDependency(path, Dependency.DependencyType.Fragment);
-                }
+    /**
+     * Expand an imported fragment
+     *
+     * @param path fragment path
+     * @param parameters parameters from the import statement
+     * @param context processor context
+     * @param includes expansion state of the current document
+     * @return the expanded content of the fragment
+     * @throws IOException reading the fragment or if the import is recursive
+     */
+    private List<Node> include(Path path, Map<String, IncludeParameter> parameters, ProcessorContext context,
+            Includes includes) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+
+        Expansions expansions = includes.expanded.computeIfAbsent(key, k -> new Expansions());
+        List<Node> expanded = expansions.get(parameters);
+        if(expanded != null) {
+            List<Node> copy = new ArrayList<>(expanded.size());
+            for(Node node : expanded)
+                copy.add(node.clone());
+            return copy;
+        }
 
-                processed = true;
+        if(includes.stack.contains(key))
+            throw new IOException("Recursive import of " + path);
 
-                element.remove();
-            } catch(Exception ex) {
-                LOG.log(Level.WARNING, "Exception processing tag " + element.text(), ex);
-            }
+        Element inserted = cache.getDocument(path, parsers.get(), loader, context);
+
+        if(!parameters.isEmpty()) {
+            applyParameters(inserted, parameters);
+            handleConditionalComments(inserted, parameters);
         }
 
-        return processed;
+        includes.stack.push(key);
+        context.setIncludeDepth(includes.stack.size());
+        try {
+            processLinks(inserted, path.getParent().toString(), context, includes);
+        } finally {
+            includes.stack.pop();
+        }
+
+        // The first use takes the expanded nodes themselves, later uses copy
+        // them. They aren't modified until every link is resolved.
+        expanded = new ArrayList<>(inserted.childNodes());
+        expansions.put(parameters, expanded);
+
+        return expanded;
     }
 
     /**
@@ -361,7 +860,7 @@ public class TemplateProcessor {
      * @param element imported element
      * @param parameters parameters from the import statement
      */
-    void applyParameters(Element element, Map<String, String> parameters) {
+    void applyParameters(Element element, Map<String, IncludeParameter> parameters) {
         for(Element parameter : element.getElementsByTag(PARAMETER_TAG)) {
             if(parameter.hasAttr(PARAMETER_NAME_ATTR)) {
                 String name = parameter.attr(PARAMETER_NAME_ATTR);
@@ -372,14 +871,14 @@ public class TemplateProcessor {
                     String attrName = parameter.attr(PARAMETER_ATTR_NAME);
 
                     if(parameter.parent().hasAttr(attrName))
-                        parameter.parent().attr(attrName, parameter.parent().attr(attrName) + " " + parameters.get(name));
+                        parameter.parent().attr(attrName, parameter.parent().attr(attrName) + " " + parameters.get(name).getHtml());
                     else
-                        parameter.parent().attr(attrName, parameters.get(name));
+                        parameter.parent().attr(attrName, parameters.get(name).getHtml());
 
                     parameter.remove();
                 } else {
                     // Replace the parameter tag with the value
-                    parameter.after(parameters.get(name));
+                    parameter.parent().insertChildren(parameter.siblingIndex(), parameters.get(name).copyNodes());
                     parameter.remove();
                 }
             }
@@ -399,26 +898,31 @@ public class TemplateProcessor {
      * parameters. We then use the original comment opener & closer to render
      * a replacement comment tag with the revised content.
      *
+     * The split and parsed comments are cached, so each distinct comment is
+     * only parsed once and only copied when it contains parameters.
+     *
      * @param node html node potentially containing conditional comments
      * @param parameters the current parameter list
      */
-    private void handleConditionalComments(Node node, Map<String, String> parameters) {
+    private void handleConditionalComments(Node node, Map<String, IncludeParameter> parameters) {
         for(int i = 0; i < node.childNodeSize(); i++) {
             Node child = node.childNode(i);
             if(child.nodeName().equals("#comment")) {
                 String comment = Comment.class.cast(child).getData();
 
                 try {
-                    String open = comment.substring(0, comment.indexOf('>') + 1);
-                    int closeIdx = comment.indexOf("<!");
-                    String close = comment.substring(closeIdx);
-
-                    String body = comment.replace(open, "").replace(close, "");
-
-                    Element htmlBody = Jsoup.parse(body, "", parser);
-                    applyParameters(htmlBody, parameters);
+                    ConditionalComment conditional = cache.getConditionalComment(comment, parsers.get());
+                    if(!conditional.isConditional())
+                        continue;
+
+                    String rendered = conditional.getRendered();
+                    if(conditional.hasParameters()) {
+                        Document htmlBody = conditional.copyBody();
+                        applyParameters(htmlBody, parameters);
+                        rendered = conditional.render(htmlBody);
+                    }
 
-                    child.replaceWith(new Comment(open + htmlBody.html() + close, ""));
+                    child.replaceWith(new Comment(rendered, ""));
                 } catch(Exception ex) {}
             } else {
                 handleConditionalComments(child, parameters);
@@ -430,12 +934,32 @@ public class TemplateProcessor {
      * Extract and inline styles
      *
      * Finds any styles included in the documents, inlines them into the resulting
-     * html and removes the styles
+     * html and removes the styles. Retained styles marked for pruning lose the
+     * rules that match nothing in the document.
      *
      * @param doc parsed html document
+     * @param context context receiving the inline style sizes
      * @throws IOException exception parsing included styles
      */
-    void extractAndApplyStyles(Document doc) throws IOException {
+    void extractAndApplyStyles(Document doc, ProcessorContext context) throws IOException {
+        extractStyles(doc, context).apply();
+    }
+
+    /**
+     * Extract and compute styles
+     *
+     * Same as {@link #extractAndApplyStyles}, except the computed styles are
+     * returned rather than written into the document, for the minifier to
+     * emit as it writes each element. Documents with retained styles marked
+     * for pruning have their styles applied first, so the selectors are
+     * matched against the document as it will be written.
+     *
+     * @param doc parsed html document
+     * @param context context receiving the inline style sizes
+     * @return the computed styles not yet applied to the document
+     * @throws IOException exception parsing included styles
+     */
+    InlineStyles extractStyles(Document doc, ProcessorContext context) throws IOException {
         StringBuilder builder = new StringBuilder();
 
         for(Element element : doc.getElementsByTag(STYLE_TAG)) {
@@ -446,87 +970,142 @@ public class TemplateProcessor {
             }
         }
 
-        CSSOMParser parser = new CSSOMParser(new SACParserCSS3());
-        InputSource src = new InputSource(new StringReader(builder.toString()));
-        CSSStyleSheet sheet = parser.parseStyleSheet(src, null, null);
-
-        Map<Element, Map<String, String>> elementStyles = new HashMap<>();
+        InlineStyles styles = builder.length() == 0 ?
+                InlineStyles.EMPTY :
+                cache.getInliner(builder.toString()).compute(doc, context);
 
-        for(int i = 0; i < sheet.getCssRules().getLength(); i++) {
-            CSSRule rule = sheet.getCssRules().item(i);
-            if(rule instanceof CSSStyleRule) {
-                CSSStyleRule style = (CSSStyleRule) rule;
-                String selector = style.getSelectorText();
+        return pruneStyles(doc, styles);
+    }
 
-                if(!selector.contains(":")) {
-                    Elements selectedElements = doc.select(selector);
+    /**
+     * Remove the unused rules of retained styles marked with ui:prune
+     *
+     * @param doc parsed html document
+     * @param styles computed inline styles
+     * @return the styles still to be written, empty if they had to be applied
+     * @throws IOException exception parsing the styles
+     */
+    private InlineStyles pruneStyles(Document doc, InlineStyles styles) throws IOException {
+        StylePruner.Index index = null;
 
-                    for (Element selected : selectedElements) {
-                        if (!elementStyles.containsKey(selected))
-                            elementStyles.put(selected, new LinkedHashMap<>());
+        for(Element element : doc.getElementsByTag(STYLE_TAG)) {
+            if(!element.hasAttr(LINK_PRUNE_ATTR))
+                continue;
 
-                        CSSStyleDeclaration styleDeclaration = style.getStyle();
+            element.removeAttr(LINK_PRUNE_ATTR);
 
-                        for (int j = 0; j < styleDeclaration.getLength(); j++) {
-                            String propertyName = styleDeclaration.item(j);
-                            Map<String, String> elementStyle = elementStyles.get(selected);
-                            elementStyle.put(propertyName, styleDeclaration.getPropertyValue(propertyName));
-                        }
-                    }
-                }
+            StringBuilder css = new StringBuilder();
+            for(Node node : element.childNodes()) {
+                if(node instanceof TextNode)
+                    css.append(((TextNode)node).getWholeText());
+                else if(node instanceof DataNode)
+                    css.append(((DataNode)node).getWholeData());
             }
-        }
-
-        for (final Map.Entry<Element, Map<String, String>> elementEntry : elementStyles.entrySet()) {
-            Element element = elementEntry.getKey();
-
-            builder.setLength(0);
 
-            for (final Map.Entry<String, String> styleEntry : elementEntry.getValue().entrySet())
-                builder.append(styleEntry.getKey()).append(":").append(styleEntry.getValue()).append(";");
+            // Selectors have to see the classes the inlining removes. The
+            // document only changes inside style elements after that, so one
+            // index serves every stylesheet
+            if(index == null) {
+                styles.apply();
+                styles = InlineStyles.EMPTY;
+                index = new StylePruner.Index(doc);
+            }
 
-            builder.append(element.attr("style"));
-            element.attr("style", builder.toString());
-            element.removeAttr("class");
+            element.text(cache.getPruner(css.toString()).prune(index));
         }
+
+        return styles;
     }
 
     /**
-     * Utility Function - get the child element with the specified tag and
-     * attribute value. We don't use the JSoup select because our specific
-     * tag contains illegal characters (:).
+     * Utility Function - index the elements with the specified tag by the
+     * value of an attribute. We don't use the JSoup select because our
+     * specific tag contains illegal characters (:).
      *
      * @param element starting node for the search
      * @param tag tag name to look for
-     * @param attr attribute name to look for
-     * @param attrValue attribute value to look for
-     * @return the first found element matching the parameters or null if not found
+     * @param attr attribute name to index by
+     * @return the matching elements in document order, by attribute value
      */
-    private Element find(Element element, String tag, String attr, String attrValue) {
+    private Map<String, Deque<Element>> index(Element element, String tag, String attr) {
+        Map<String, Deque<Element>> index = new HashMap<>();
+
         for(Element m : element.getElementsByTag(tag)) {
-            if(m.hasAttr(attr) && m.attr(attr).equals(attrValue))
-                return m;
+            if(m.hasAttr(attr))
+                index.computeIfAbsent(m.attr(attr), k -> new ArrayDeque<>()).add(m);
         }
 
-        return null;
+        return index;
     }
 
     /**
-     * Utility Function - see if an element has a specific CHILD tag.
-     *
-     * getElementsByTag includes the current element if it matches so we filter
-     * that out here
+     * A single render against a fresh context
+     */
+    @FunctionalInterface
+    private interface Render {
+        void render(ProcessorContext context) throws Exception;
+    }
+
+    /**
+     * A built document and the inline styles still to be written with it
+     */
+    private static final class Built {
+        private final Document doc;
+        private final InlineStyles styles;
+
+        private Built(Document doc, InlineStyles styles) {
+            this.doc = doc;
+            this.styles = styles;
+        }
+    }
+
+    /**
+     * Import expansion state for one document
+     */
+    private static final class Includes {
+        // Fragments currently being expanded, innermost first
+        private final Deque<Path> stack = new ArrayDeque<>();
+
+        // Expanded content by fragment and parameters
+        private final Map<Path, Expansions> expanded = new HashMap<>();
+    }
+
+    /**
+     * Expansions of one fragment by parameters
      *
-     * @param element starting node for the search
-     * @param tag tag name to look for
-     * @return true if the element has a CHILD element with the tag
+     * Looking up parameters by value serializes them, so that's put off until
+     * a fragment is imported a second time.
      */
-    private boolean hasChildTag(Element element, String tag) {
-        for(Element child : element.getElementsByTag(tag)) {
-            if(child != element)
-                return true;
+    private static final class Expansions {
+        private Map<String, IncludeParameter> firstParameters;
+        private List<Node> first;
+        private Map<Map<String, IncludeParameter>, List<Node>> byParameters;
+
+        List<Node> get(Map<String, IncludeParameter> parameters) {
+            if(byParameters == null && first == null)
+                return null;
+
+            return index().get(parameters);
+        }
+
+        void put(Map<String, IncludeParameter> parameters, List<Node> expanded) {
+            if(byParameters == null && first == null) {
+                firstParameters = parameters;
+                first = expanded;
+            } else {
+                index().put(parameters, expanded);
+            }
         }
 
-        return false;
+        private Map<Map<String, IncludeParameter>, List<Node>> index() {
+            if(byParameters == null) {
+                byParameters = new HashMap<>();
+                byParameters.put(firstParameters, first);
+                firstParameters = null;
+                first = null;
+            }
+
+            return byParameters;
+        }
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Template Resource Loader
+ *
+ * Source of the emails, templates, fragments and stylesheets read by a
+ * {@link TemplateProcessor}. Resources are named by paths, which are
+ * resolved against each other as usual but need not exist on the default
+ * filesystem; each loader decides how a path maps to content.
+ *
+ * Implementations must be thread safe.
+ *
+ * @see FileSystemResourceLoader
+ * @see ClasspathResourceLoader
+ * @see InMemoryResourceLoader
+ */
+public interface TemplateResourceLoader {
+    /**
+     * Open a resource
+     *
+     * @param path resource path
+     * @return a stream over the content, closed by the caller
+     * @throws java.nio.file.NoSuchFileException if the resource doesn't exist
+     * @throws IOException reading the resource
+     */
+    InputStream open(Path path) throws IOException;
+
+    /**
+     * Read a resource as UTF-8 text
+     *
+     * @param path resource path
+     * @return the content
+     * @throws java.nio.file.NoSuchFileException if the resource doesn't exist
+     * @throws IOException reading the resource
+     */
+    default String read(Path path) throws IOException {
+        try (InputStream input = open(path)) {
+            return new String(ByteStreams.toByteArray(input), Charsets.UTF_8);
+        }
+    }
+
+    /**
+     * Get the version of a resource
+     *
+     * The version changes whenever the content does. It is used to key
+     * cached parses and to notice changed dependencies, so it should be
+     * cheap to get.
+     *
+     * @param path resource path
+     * @return the current version
+     * @throws java.nio.file.NoSuchFileException if the resource doesn't exist
+     * @throws IOException reading the resource
+     */
+    Version getVersion(Path path) throws IOException;
+
+    /**
+     * Modification stamp and size of a resource
+     */
+    final class Version {
+        private final long modified;
+        private final long size;
+
+        /**
+         * @param modified modification time, or any stamp that changes with
+         * the content
+         * @param size content size in bytes
+         */
+        public Version(long modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof Version))
+                return false;
+
+            Version other = (Version) o;
+            return modified == other.modified && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(modified) + Long.hashCode(size);
+        }
+
+        @Override
+        public String toString() {
+            return modified + ":" + size;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Live Recompilation Watcher
+ *
+ * Watches a source tree, and the directories of every dependency recorded in
+ * the manifest, for changes. Bursts of file events are debounced and the
+ * emails affected by the changed files are recompiled in the background.
+ *
+ * The batch processor, and so its parse cache, is reused for every rebuild so
+ * unchanged templates, fragments and stylesheets stay parsed between edits.
+ * The files that changed are evicted from the parse cache before each
+ * rebuild. New directories, and the directories of new dependencies, are
+ * watched as they appear.
+ */
+public class TemplateWatcher implements Closeable {
+    private static final Logger LOG = Logger.getLogger(TemplateWatcher.class.getName());
+
+    /**
+     * Default quiet period after the last event before a rebuild starts
+     */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 30;
+
+    private final BatchProcessor batch;
+    private final Path sourceRoot;
+    private final Path outputRoot;
+    private final DependencyManifest manifest;
+    private final long debounceMillis;
+
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Set<Path> registered = new HashSet<>();
+    private volatile Consumer<BatchResult> listener = result -> {};
+
+    private WatchService watcher;
+    private Thread thread;
+
+    /**
+     * Create a watcher with the default debounce period
+     *
+     * @param batch processor used for rebuilds
+     * @param sourceRoot root of the source tree
+     * @param outputRoot root of the output tree
+     * @param manifest dependency manifest, saved after every rebuild
+     */
+    public TemplateWatcher(BatchProcessor batch, Path sourceRoot, Path outputRoot, DependencyManifest manifest) {
+        this(batch, sourceRoot, outputRoot, manifest, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Create a watcher
+     *
+     * @param batch processor used for rebuilds
+     * @param sourceRoot root of the source tree
+     * @param outputRoot root of the output tree
+     * @param manifest dependency manifest, saved after every rebuild
+     * @param debounceMillis quiet period after the last event before a rebuild starts
+     */
+    public TemplateWatcher(BatchProcessor batch, Path sourceRoot, Path outputRoot, DependencyManifest manifest,
+            long debounceMillis) {
+        this.batch = batch;
+        this.sourceRoot = sourceRoot;
+        this.outputRoot = outputRoot;
+        this.manifest = manifest;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Set a callback invoked on the watcher thread after every rebuild
+     *
+     * @param listener rebuild callback
+     */
+    public void setListener(Consumer<BatchResult> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Bring the output up to date and start watching
+     *
+     * @return the result of the initial incremental build
+     * @throws IOException building or registering the directories
+     * @throws InterruptedException if interrupted during the initial build
+     */
+    public synchronized BatchResult start() throws IOException, InterruptedException {
+        if(thread != null)
+            throw new IllegalStateException("Watcher already started");
+
+        BatchResult initial = batch.process(sourceRoot, outputRoot, manifest);
+
+        watcher = FileSystems.getDefault().newWatchService();
+        registerAll();
+
+        thread = new Thread(this::run, "TemplateWatcher-" + sourceRoot.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+
+        return initial;
+    }
+
+    /**
+     * Stop watching
+     *
+     * @throws IOException closing the watch service
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(watcher != null)
+            watcher.close();
+
+        if(thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void run() {
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new HashSet<>();
+
+                // Block for the first event, then keep collecting until the
+                // burst goes quiet
+                WatchKey key = watcher.take();
+                while(key != null) {
+                    collect(key, changed);
+                    key = watcher.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                }
+
+                if(changed.isEmpty())
+                    continue;
+
+                // A failed rebuild mustn't stop the watcher, the next edit
+                // may well fix it
+                try {
+                    rebuild(changed);
+                } catch(RuntimeException ex) {
+                    LOG.log(Level.SEVERE, "Rebuild failed, still watching " + sourceRoot, ex);
+                }
+            }
+        } catch(InterruptedException | ClosedWatchServiceException ex) {
+            // Shutting down
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path dir = keys.get(key);
+
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Lost events, fall back to checking everything
+                changed.addAll(manifest.getEmails());
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context());
+            changed.add(path);
+
+            if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    registerCreated(path, changed);
+                } catch(IOException ex) {
+                    LOG.log(Level.WARNING, "Unable to watch " + path, ex);
+                }
+            }
+        }
+
+        if(!key.reset())
+            registered.remove(keys.remove(key));
+    }
+
+    private void rebuild(Set<Path> changed) throws InterruptedException {
+        // The parse cache keys files by modification time and size, which an
+        // edit within the timestamp resolution can leave unchanged
+        batch.getCache().invalidate(changed);
+
+        Set<Path> affected = manifest.getAffected(changed);
+
+        // New emails aren't in the manifest yet
+        Path root = DependencyManifest.normalize(sourceRoot);
+        for(Path path : changed) {
+            Path normalized = DependencyManifest.normalize(path);
+            if(normalized.startsWith(root) && batch.isEmail(normalized))
+                affected.add(normalized);
+        }
+
+        Set<Path> sources = new HashSet<>();
+        for(Path email : affected) {
+            if(Files.isRegularFile(email))
+                sources.add(email);
+            else
+                delete(email, root);
+        }
+
+        if(sources.isEmpty()) {
+            // Only deletions
+            if(!affected.isEmpty())
+                save();
+            return;
+        }
+
+        BatchResult result = batch.process(sources, root, outputRoot, manifest);
+
+        LOG.log(Level.INFO, "Recompiled {0} email(s), {1} failed in {2} ms", new Object[] {
+                result.getSuccessCount(), result.getFailureCount(), result.getElapsedNanos() / 1000000 });
+
+        save();
+        registerDependencies(sources);
+
+        listener.accept(result);
+    }
+
+    private void save() {
+        try {
+            manifest.save();
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, "Unable to update the dependency manifest", ex);
+        }
+    }
+
+    /**
+     * Forget a deleted email and delete its output
+     */
+    private void delete(Path email, Path root) {
+        manifest.remove(email);
+
+        if(!email.startsWith(root))
+            return;
+
+        Path destination = BatchProcessor.destination(email, root, outputRoot);
+        try {
+            if(Files.deleteIfExists(destination))
+                LOG.log(Level.INFO, "Deleted {0}", destination);
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, "Unable to delete " + destination, ex);
+        }
+    }
+
+    /**
+     * Watch every directory of the source tree and every directory holding a
+     * recorded dependency
+     */
+    private void registerAll() throws IOException {
+        try (Stream<Path> walk = Files.walk(sourceRoot)) {
+            for(Path dir : (Iterable<Path>) walk.filter(Files::isDirectory)::iterator)
+                register(dir);
+        }
+
+        for(Path email : manifest.getEmails()) {
+            for(Dependency dependency : manifest.getDependencies(email)) {
+                Path dir = dependency.getPath().getParent();
+                if(dir != null && Files.isDirectory(dir))
+                    register(dir);
+            }
+        }
+    }
+
+    /**
+     * Watch a new directory and everything below it, treating any files
+     * already in it as changed since they may predate the registration
+     */
+    private void registerCreated(Path created, Set<Path> changed) throws IOException {
+        try (Stream<Path> walk = Files.walk(created)) {
+            for(Path path : (Iterable<Path>) walk::iterator) {
+                if(Files.isDirectory(path))
+                    register(path);
+                else
+                    changed.add(path);
+            }
+        }
+    }
+
+    /**
+     * Watch the directories of the dependencies of recompiled emails
+     */
+    private void registerDependencies(Set<Path> emails) {
+        for(Path email : emails) {
+            for(Dependency dependency : manifest.getDependencies(email)) {
+                Path dir = dependency.getPath().getParent();
+                if(dir == null || !Files.isDirectory(dir))
+                    continue;
+
+                try {
+                    register(dir);
+                } catch(IOException ex) {
+                    LOG.log(Level.WARNING, "Unable to watch " + dir, ex);
+                }
+            }
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        Path normalized = DependencyManifest.normalize(dir);
+        if(registered.contains(normalized))
+            return;
+
+        WatchKey key = normalized.register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, normalized);
+        registered.add(normalized);
+    }
+}
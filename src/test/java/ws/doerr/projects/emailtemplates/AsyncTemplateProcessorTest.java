@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Asynchronous processing and admission control
+ */
+public class AsyncTemplateProcessorTest {
+    private Path dir;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        TestFixtures.delete(dir);
+    }
+
+    @Test
+    public void rendersAsynchronously() throws Exception {
+        TemplateProcessor processor = new TemplateProcessor();
+        String expected = processor.process(dir.resolve("welcome.html")).getHtml();
+
+        try (AsyncTemplateProcessor async = new AsyncTemplateProcessor(processor, executor, 4)) {
+            ProcessorContext context = async.processAsync(dir.resolve("welcome.html")).get(10, TimeUnit.SECONDS);
+            assertEquals(expected, context.getHtml());
+        }
+    }
+
+    @Test
+    public void rejectsWithoutBlockingWhenFull() throws Exception {
+        // Hold the only worker so the first render stays pending
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        try (AsyncTemplateProcessor async = new AsyncTemplateProcessor(new TemplateProcessor(), executor, 1)) {
+            CompletableFuture<ProcessorContext> first = async.processAsync(dir.resolve("plain.html"));
+            CompletableFuture<ProcessorContext> second = async.processAsync(dir.resolve("plain.html"));
+
+            assertTrue(second.isCompletedExceptionally());
+            try {
+                second.get();
+                fail("Expected the render to be rejected");
+            } catch(ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof RejectedExecutionException);
+            }
+
+            release.countDown();
+            assertTrue(first.get(10, TimeUnit.SECONDS).getHtml().contains("Hi there"));
+            assertEquals(1, async.getAvailablePermits());
+        }
+    }
+}
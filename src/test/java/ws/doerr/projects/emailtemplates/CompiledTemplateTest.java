@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Mail merge of compiled templates
+ */
+public class CompiledTemplateTest {
+    private static final Map<String, Object> VALUES = ImmutableMap.of("first", "Ada", "last", "Lovelace", "count", 3);
+
+    @Test
+    public void splitsSegmentsAndFields() throws IOException {
+        CompiledTemplate template = CompiledTemplate.compile("<p>Hi {{first}} {{ last }}, {{count}} new</p>");
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("first", "last", "count")), template.getFieldNames());
+        assertEquals("<p>Hi Ada Lovelace, 3 new</p>", render(template, VALUES));
+    }
+
+    @Test
+    public void fieldsAtTheStartAndEnd() throws IOException {
+        assertEquals("Ada and Lovelace", render(CompiledTemplate.compile("{{first}} and {{last}}"), VALUES));
+        assertEquals("Ada", render(CompiledTemplate.compile("{{first}}"), VALUES));
+    }
+
+    @Test
+    public void adjacentFields() throws IOException {
+        CompiledTemplate template = CompiledTemplate.compile("<b>{{first}}{{last}}{{first}}</b>");
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("first", "last")), template.getFieldNames());
+        assertEquals("<b>AdaLovelaceAda</b>", render(template, VALUES));
+    }
+
+    @Test
+    public void missingFieldsRenderEmpty() throws IOException {
+        CompiledTemplate template = CompiledTemplate.compile("<p>{{first}}|{{middle}}|{{last}}</p>");
+
+        assertEquals("<p>Ada||Lovelace</p>", render(template, VALUES));
+        assertEquals("<p>||</p>", render(template, Collections.emptyMap()));
+    }
+
+    @Test
+    public void textWithoutFieldsIsStatic() throws IOException {
+        String html = "<p>{{ }} and {{unclosed</p>";
+        CompiledTemplate template = CompiledTemplate.compile(html);
+
+        assertEquals(Collections.emptySet(), template.getFieldNames());
+        assertEquals(html, render(template, VALUES));
+        assertEquals("", render(CompiledTemplate.compile(""), VALUES));
+    }
+
+    @Test
+    public void customDelimiters() throws IOException {
+        CompiledTemplate template = CompiledTemplate.compile("<p>{{first}} [%last%]</p>", "[%", "%]");
+
+        assertEquals(Collections.singleton("last"), template.getFieldNames());
+        assertEquals("<p>{{first}} Lovelace</p>", render(template, VALUES));
+    }
+
+    @Test
+    public void emptyDelimitersAreRejected() {
+        try {
+            CompiledTemplate.compile("<p></p>", "", "}}");
+            fail("Empty delimiter accepted");
+        } catch(IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Render through both entry points, checking they agree
+     */
+    private static String render(CompiledTemplate template, Map<String, ?> values) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        template.render(values, sb);
+
+        String html = template.render(values);
+        assertEquals(html, sb.toString());
+        return html;
+    }
+}
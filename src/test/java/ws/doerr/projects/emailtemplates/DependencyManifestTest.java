@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Dependency manifest staleness and persistence
+ */
+public class DependencyManifestTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFixtures.delete(dir);
+    }
+
+    @Test
+    public void changedDependencyMakesEmailStale() throws Exception {
+        Path email = dir.resolve("welcome.html");
+        DependencyManifest manifest = new DependencyManifest(dir.resolve("manifest"));
+        manifest.record(email, new TemplateProcessor().process(email));
+
+        assertFalse(manifest.isStale(email));
+
+        Path fragment = dir.resolve("fragments/button.inc");
+        Files.write(fragment, "<div>changed</div>".getBytes(Charsets.UTF_8));
+
+        assertTrue(manifest.isStale(email));
+        assertEquals(Collections.singleton(DependencyManifest.normalize(email)),
+                manifest.getAffected(Collections.singleton(fragment)));
+    }
+
+    @Test
+    public void missingIncludeIsTracked() throws Exception {
+        Path email = dir.resolve("broken.html");
+        Files.write(email, ("<html><head><title>Broken</title></head><body>" +
+                "<link rel=\"import\" href=\"fragments/header.inc\"/></body></html>").getBytes(Charsets.UTF_8));
+
+        DependencyManifest manifest = new DependencyManifest(dir.resolve("manifest"));
+        manifest.record(email, new TemplateProcessor().process(email));
+
+        assertFalse(manifest.isStale(email));
+
+        Path header = dir.resolve("fragments/header.inc");
+        Files.write(header, "<p>Header</p>".getBytes(Charsets.UTF_8));
+
+        assertTrue(manifest.isStale(email));
+        assertEquals(Collections.singleton(DependencyManifest.normalize(email)),
+                manifest.getAffected(Collections.singleton(header)));
+    }
+
+    @Test
+    public void editDuringRenderStaysStale() throws Exception {
+        Path email = dir.resolve("welcome.html");
+        ProcessorContext context = new TemplateProcessor().process(email);
+
+        // Saved after the render read the fragment, before it was recorded
+        Files.write(dir.resolve("fragments/button.inc"), "<div>changed</div>".getBytes(Charsets.UTF_8));
+
+        DependencyManifest manifest = new DependencyManifest(dir.resolve("manifest"));
+        manifest.record(email, context);
+        assertTrue(manifest.isStale(email));
+
+        // Still stale once the manifest has been through a save and load
+        manifest.save();
+        assertTrue(DependencyManifest.load(dir.resolve("manifest")).isStale(email));
+    }
+
+    @Test
+    public void includeCreatedDuringRenderStaysStale() throws Exception {
+        Path email = dir.resolve("broken.html");
+        Files.write(email, ("<html><head><title>Broken</title></head><body>" +
+                "<link rel=\"import\" href=\"fragments/header.inc\"/></body></html>").getBytes(Charsets.UTF_8));
+        ProcessorContext context = new TemplateProcessor().process(email);
+
+        Files.write(dir.resolve("fragments/header.inc"), "<p>Header</p>".getBytes(Charsets.UTF_8));
+
+        DependencyManifest manifest = new DependencyManifest(dir.resolve("manifest"));
+        manifest.record(email, context);
+        assertTrue(manifest.isStale(email));
+    }
+
+    @Test
+    public void sharedDependenciesRecordTheSameState() throws Exception {
+        TemplateProcessor processor = new TemplateProcessor();
+        DependencyManifest manifest = new DependencyManifest(dir.resolve("manifest"));
+        for(String email : TestFixtures.EMAILS)
+            manifest.record(dir.resolve(email), processor.process(dir.resolve(email)));
+
+        assertTrue(manifest.getStale(manifest.getEmails()).isEmpty());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        Path email = dir.resolve("receipt.html");
+        DependencyManifest manifest = new DependencyManifest(dir.resolve("manifest"));
+        manifest.record(email, new TemplateProcessor().process(email));
+        manifest.save();
+
+        DependencyManifest loaded = DependencyManifest.load(dir.resolve("manifest"));
+        assertEquals(manifest.getEmails(), loaded.getEmails());
+        assertEquals(manifest.getDependencies(email), loaded.getDependencies(email));
+        assertFalse(loaded.isStale(email));
+    }
+
+    @Test
+    public void malformedLinesAreSkipped() throws Exception {
+        Path email = dir.resolve("receipt.html");
+        DependencyManifest manifest = new DependencyManifest(dir.resolve("manifest"));
+        manifest.record(email, new TemplateProcessor().process(email));
+        manifest.save();
+
+        // Corrupt numbers and an unknown type, then a truncated last line
+        Path file = dir.resolve("manifest");
+        String content = new String(Files.readAllBytes(file), Charsets.UTF_8) +
+                "E Source notanumber 1 - /tmp/other.html\n" +
+                "D Unknown 1 1 - /tmp/other.css\n" +
+                "D Fragment 12";
+        Files.write(file, content.getBytes(Charsets.UTF_8));
+
+        DependencyManifest loaded = DependencyManifest.load(file);
+        assertEquals(Collections.singleton(DependencyManifest.normalize(email)), loaded.getEmails());
+        assertEquals(manifest.getDependencies(email), loaded.getDependencies(email));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Persistent output cache
+ */
+public class OutputCacheTest {
+    private Path dir;
+    private Path cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+        cacheDir = Files.createTempDirectory("emailtemplates-cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFixtures.delete(dir);
+        TestFixtures.delete(cacheDir);
+    }
+
+    @Test
+    public void unchangedInputsHit() throws Exception {
+        TemplateProcessor processor = processor(new OutputCache(cacheDir, OutputCache.DEFAULT_MAXIMUM_SIZE, dir));
+
+        ProcessorContext first = processor.process(dir.resolve("welcome.html"));
+        ProcessorContext second = processor.process(dir.resolve("welcome.html"));
+
+        assertFalse(first.isCached());
+        assertTrue(second.isCached());
+        assertEquals(first.getHtml(), second.getHtml());
+        assertEquals(first.getTitle(), second.getTitle());
+        assertEquals(first.getDependencies(), second.getDependencies());
+    }
+
+    @Test
+    public void hitsMatchMissesBelowTheWorkingDirectory() throws Exception {
+        Path local = TestFixtures.create(Paths.get("build", "tmp"));
+        try {
+            Path absolute = local.toAbsolutePath();
+            Path relative = Paths.get("").toAbsolutePath().relativize(absolute);
+
+            TemplateProcessor processor = processor(new OutputCache(cacheDir, OutputCache.DEFAULT_MAXIMUM_SIZE, absolute));
+
+            // Each form of the source gets its dependencies back in that form
+            // from the cache, whichever form filled it
+            ProcessorContext first = processor.process(absolute.resolve("welcome.html"));
+            ProcessorContext second = processor.process(relative.resolve("welcome.html"));
+            ProcessorContext third = processor.process(absolute.resolve("welcome.html"));
+
+            assertFalse(first.isCached());
+            assertTrue(second.isCached());
+            assertTrue(third.isCached());
+            assertEquals(first.getDependencies(), third.getDependencies());
+
+            for(Dependency dependency : first.getDependencies())
+                assertTrue(dependency.toString(), dependency.getPath().isAbsolute());
+            for(Dependency dependency : second.getDependencies())
+                assertFalse(dependency.toString(), dependency.getPath().isAbsolute());
+
+            ProcessorContext uncached = processor(null).process(relative.resolve("welcome.html"));
+            assertEquals(uncached.getDependencies(), second.getDependencies());
+        } finally {
+            TestFixtures.delete(local);
+        }
+    }
+
+    @Test
+    public void changedDependencyMisses() throws Exception {
+        TemplateProcessor processor = processor(new OutputCache(cacheDir, OutputCache.DEFAULT_MAXIMUM_SIZE, dir));
+        processor.process(dir.resolve("plain.html"));
+
+        write(dir.resolve("fragments/footer.inc"), "<p>Changed footer</p>");
+
+        ProcessorContext context = processor.process(dir.resolve("plain.html"));
+        assertFalse(context.isCached());
+        assertTrue(context.getHtml().contains("Changed footer"));
+    }
+
+    @Test
+    public void creatingMissingIncludeMisses() throws Exception {
+        Path email = dir.resolve("broken.html");
+        write(email, "<html><head><title>Broken</title></head><body>" +
+                "<link rel=\"import\" href=\"fragments/header.inc\"/></body></html>");
+
+        TemplateProcessor processor = processor(new OutputCache(cacheDir, OutputCache.DEFAULT_MAXIMUM_SIZE, dir));
+        processor.process(email);
+        assertTrue(processor.process(email).isCached());
+
+        write(dir.resolve("fragments/header.inc"), "<p>Header</p>");
+
+        ProcessorContext context = processor.process(email);
+        assertFalse(context.isCached());
+        assertTrue(context.getHtml().contains("Header"));
+    }
+
+    @Test
+    public void checkoutsInDifferentPlacesShareEntries() throws Exception {
+        Path other = TestFixtures.create();
+        try {
+            ProcessorContext first = processor(new OutputCache(cacheDir, OutputCache.DEFAULT_MAXIMUM_SIZE, dir))
+                    .process(dir.resolve("welcome.html"));
+
+            ProcessorContext second = processor(new OutputCache(cacheDir, OutputCache.DEFAULT_MAXIMUM_SIZE, other))
+                    .process(other.resolve("welcome.html"));
+
+            assertTrue(second.isCached());
+            assertEquals(first.getHtml(), second.getHtml());
+
+            // Dependencies come back in terms of the second checkout
+            for(Dependency dependency : second.getDependencies())
+                assertTrue(DependencyManifest.normalize(dependency.getPath()).startsWith(other));
+        } finally {
+            TestFixtures.delete(other);
+        }
+    }
+
+    private static TemplateProcessor processor(OutputCache outputCache) {
+        return new TemplateProcessor(Collections.emptyMap(), false, new ParseCache(), outputCache);
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Files.write(file, content.getBytes(Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Processor metrics
+ */
+public class ProcessorMetricsTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFixtures.delete(dir);
+    }
+
+    @Test
+    public void outputCacheHitsRecordWallClockLatency() throws Exception {
+        OutputCache outputCache = new OutputCache(dir.resolve("cache"));
+        TemplateProcessor processor = new TemplateProcessor(Collections.emptyMap(), false, new ParseCache(), outputCache);
+
+        processor.process(dir.resolve("welcome.html"));
+        ProcessorContext hit = processor.process(dir.resolve("welcome.html"));
+
+        // A hit runs none of the phases but still takes time
+        assertTrue(hit.isCached());
+        assertEquals(0, hit.getElapsedNanos());
+        assertTrue(hit.getLatencyNanos() > 0);
+
+        ProcessorMetrics metrics = processor.getMetrics();
+        assertEquals(2, metrics.getProcessedCount());
+        assertEquals(1, metrics.getCachedCount());
+        assertTrue(metrics.getMaxLatencyMillis() > 0);
+    }
+
+    @Test
+    public void latencyCoversThePhases() throws Exception {
+        ProcessorContext context = new TemplateProcessor().process(dir.resolve("newsletter.html"));
+        assertTrue(context.getLatencyNanos() >= context.getElapsedNanos());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * In memory rendered template cache
+ */
+public class RenderCacheTest {
+    private Path dir;
+    private RenderCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+        cache = new RenderCache(new TemplateProcessor(), RenderCache.DEFAULT_MAXIMUM_WEIGHT, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFixtures.delete(dir);
+    }
+
+    @Test
+    public void unchangedInputsAreShared() throws Exception {
+        assertSame(cache.getOrProcess(dir.resolve("welcome.html")), cache.getOrProcess(dir.resolve("welcome.html")));
+    }
+
+    @Test
+    public void creatingMissingIncludeRenders() throws Exception {
+        Path email = dir.resolve("broken.html");
+        write(email, "<html><head><title>Broken</title></head><body>" +
+                "<link rel=\"import\" href=\"fragments/header.inc\"/></body></html>");
+
+        ProcessorContext first = cache.getOrProcess(email);
+        assertFalse(first.getHtml().contains("Header"));
+
+        write(dir.resolve("fragments/header.inc"), "<p>Header</p>");
+
+        ProcessorContext second = cache.getOrProcess(email);
+        assertNotSame(first, second);
+        assertTrue(second.getHtml().contains("Header"));
+    }
+
+    @Test
+    public void editDuringRenderRenders() throws Exception {
+        Path fragment = dir.resolve("fragments/button.inc");
+        AtomicBoolean edited = new AtomicBoolean();
+        FileSystemResourceLoader files = new FileSystemResourceLoader();
+
+        // Save a new fragment just after the render has read the old one
+        TemplateResourceLoader loader = new TemplateResourceLoader() {
+            @Override
+            public InputStream open(Path path) throws IOException {
+                byte[] content;
+                try (InputStream input = files.open(path)) {
+                    content = ByteStreams.toByteArray(input);
+                }
+                if(path.endsWith("button.inc") && edited.compareAndSet(false, true))
+                    Files.write(fragment, "<div>Edited button</div>".getBytes(Charsets.UTF_8));
+                return new ByteArrayInputStream(content);
+            }
+
+            @Override
+            public Version getVersion(Path path) throws IOException {
+                return files.getVersion(path);
+            }
+        };
+
+        RenderCache cache = new RenderCache(new TemplateProcessor(Collections.emptyMap(), false, new ParseCache(),
+                null, loader), RenderCache.DEFAULT_MAXIMUM_WEIGHT, 0, TimeUnit.MILLISECONDS);
+
+        // The render read the old fragment, so checking its inputs finds it
+        // stale straight away and renders again
+        ProcessorContext context = cache.getOrProcess(dir.resolve("welcome.html"));
+        assertTrue(edited.get());
+        assertEquals(1, cache.getInvalidationCount());
+
+        // Both buttons come from the edited fragment
+        assertEquals(3, context.getHtml().split("Edited button", -1).length);
+        assertSame(context, cache.getOrProcess(dir.resolve("welcome.html")));
+    }
+
+    @Test
+    public void sharedContextIsReadOnly() throws Exception {
+        ProcessorContext context = cache.getOrProcess(dir.resolve("welcome.html"));
+
+        try {
+            context.getMeta().put("category", "changed");
+            fail("Meta data of a shared context was modified");
+        } catch(UnsupportedOperationException ex) {
+            // Expected
+        }
+
+        try {
+            context.getDependencies().clear();
+            fail("Dependencies of a shared context were modified");
+        } catch(UnsupportedOperationException ex) {
+            // Expected
+        }
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Files.write(file, content.getBytes(Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Fused style output against styles applied to the document
+ */
+public class StyleFusionTest {
+    private static final String PRUNED = "pruned.html";
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+
+        // Retained styles marked for pruning, with elements carrying their
+        // own style attribute and classes that both sheets match
+        Files.write(dir.resolve(PRUNED), ("<html><head><title>Pruned</title>"
+                + "<style ui:inline=\"\">.a { color: red } p { margin: 0 }</style>"
+                + "<style ui:prune=\"\">.a { color: blue } .unused { color: green }</style></head>"
+                + "<body><!-- note --><p class=\"a b\" style=\"padding:1px\">One</p><p>Two</p></body></html>")
+                .getBytes(Charsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFixtures.delete(dir);
+    }
+
+    @Test
+    public void fusedOutputMatchesAppliedStyles() throws Exception {
+        compare(false, false);
+    }
+
+    @Test
+    public void fusedOutputMatchesWithoutCommentsAndWithText() throws Exception {
+        compare(true, true);
+    }
+
+    @Test
+    public void contextKeepsNoStyleState() throws Exception {
+        TemplateProcessor processor = processor(false, false, true);
+        ProcessorContext context = processor.process(dir.resolve("newsletter.html"));
+
+        // The styles are local to the render, so the document they refer to
+        // isn't kept reachable from a returned or cached context
+        for(Field field : ProcessorContext.class.getDeclaredFields())
+            assertFalse(field.getName(), InlineStyles.class.isAssignableFrom(field.getType()));
+        assertTrue(context.getHtml().contains("style=\"background-color:#0080ff"));
+    }
+
+    private void compare(boolean removeComments, boolean plainText) throws Exception {
+        TemplateProcessor applied = processor(removeComments, plainText, false);
+        TemplateProcessor fused = processor(removeComments, plainText, true);
+
+        List<String> emails = new ArrayList<>(TestFixtures.EMAILS);
+        emails.add(PRUNED);
+
+        for(String email : emails) {
+            Path source = dir.resolve(email);
+            ProcessorContext expected = applied.process(source);
+            ProcessorContext actual = fused.process(source);
+
+            assertEquals(email, expected.getHtml(), actual.getHtml());
+            assertEquals(email, expected.getText(), actual.getText());
+            assertEquals(email, expected.getHtml(), stream(fused, source));
+        }
+    }
+
+    private static TemplateProcessor processor(boolean removeComments, boolean plainText, boolean fuseStyles) {
+        return new TemplateProcessor(Collections.emptyMap(), removeComments, new ParseCache(), null,
+                new FileSystemResourceLoader(), plainText, fuseStyles);
+    }
+
+    private static String stream(TemplateProcessor processor, Path email) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = Files.newInputStream(email)) {
+            processor.process(input, email.getParent(), output);
+        }
+        return new String(output.toByteArray(), Charsets.UTF_8);
+    }
+}
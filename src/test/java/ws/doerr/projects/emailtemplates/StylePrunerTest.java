@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.Test;
+
+/**
+ * Unused rule pruning of retained stylesheets
+ */
+public class StylePrunerTest {
+    @Test
+    public void unusedRulesArePruned() throws IOException {
+        assertEquals(".a{color:red}", prune(".a{color:red}\n.unused{color:blue}", "<p class=\"a\">x</p>"));
+    }
+
+    @Test
+    public void atRulesAndPseudoClassesAreKept() throws IOException {
+        assertEquals("@media (max-width:600px){.unused{color:red}}a:hover{color:blue}",
+                prune("@media (max-width:600px){.unused{color:red}}\na:hover{color:blue}", "<p>x</p>"));
+    }
+
+    @Test
+    public void classesMatchRegardlessOfCase() throws IOException {
+        // Deliberate, see StylePruner: quirks mode clients ignore the case
+        assertEquals("p.a{color:red}", prune("p.a{color:red}\np.b{color:blue}", "<p class=\"A\">x</p>"));
+    }
+
+    private static String prune(String css, String body) throws IOException {
+        Document doc = Jsoup.parse("<html><head></head><body>" + body + "</body></html>");
+        return StylePruner.parse(css).prune(new StylePruner.Index(doc));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Concurrent use of a single TemplateProcessor
+ */
+public class TemplateProcessorConcurrencyTest {
+    private static final int THREADS = 64;
+    private static final int ITERATIONS = 20;
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestFixtures.delete(dir);
+    }
+
+    @Test
+    public void concurrentProcessMatchesSingleThreaded() throws Exception {
+        // Reference output, one email at a time on a processor of its own
+        Map<String, String> expected = new HashMap<>();
+        for(String email : TestFixtures.EMAILS)
+            expected.put(email, new TemplateProcessor().process(dir.resolve(email)).getHtml());
+
+        TemplateProcessor processor = new TemplateProcessor();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for(int t = 0; t < THREADS; t++) {
+                int offset = t;
+                futures.add(executor.submit(() -> {
+                    List<String> failures = new ArrayList<>();
+                    start.await();
+
+                    // Each thread starts on a different email so every email
+                    // is being rendered by several threads at once
+                    for(int i = 0; i < ITERATIONS; i++) {
+                        String email = TestFixtures.EMAILS.get((offset + i) % TestFixtures.EMAILS.size());
+                        String html = i % 2 == 0 ?
+                                processor.process(dir.resolve(email)).getHtml() :
+                                stream(processor, dir.resolve(email));
+                        if(!expected.get(email).equals(html))
+                            failures.add(email);
+                    }
+
+                    return failures;
+                }));
+            }
+
+            start.countDown();
+
+            List<String> failures = new ArrayList<>();
+            for(Future<List<String>> future : futures)
+                failures.addAll(future.get(60, TimeUnit.SECONDS));
+
+            assertEquals("Renders differing from the single threaded output", Collections.emptyList(), failures);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(THREADS * ITERATIONS, processor.getMetrics().getProcessedCount());
+    }
+
+    /**
+     * Render through the pooled output encoders
+     */
+    private static String stream(TemplateProcessor processor, Path email) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = Files.newInputStream(email)) {
+            processor.process(input, email.getParent(), output);
+        }
+        return new String(output.toByteArray(), Charsets.UTF_8);
+    }
+
+    @Test
+    public void fixturesExerciseIncludesAndStyles() throws Exception {
+        String html = new TemplateProcessor().process(dir.resolve("newsletter.html")).getHtml();
+
+        // Guard against the comparison passing on trivially empty output
+        assertTrue(html.contains("Story 12"));
+        assertTrue(html.contains("style=\"background-color:#0080ff"));
+        assertTrue(html.contains("unsubscribe"));
+    }
+}
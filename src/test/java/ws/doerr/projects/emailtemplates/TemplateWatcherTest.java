@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Live recompilation
+ */
+public class TemplateWatcherTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Path dir;
+    private Path output;
+    private TemplateWatcher watcher;
+    private final BlockingQueue<BatchResult> results = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFixtures.create();
+        output = Files.createTempDirectory("emailtemplates-out");
+
+        DependencyManifest manifest = new DependencyManifest(output.resolve("manifest"));
+        watcher = new TemplateWatcher(new BatchProcessor(), dir, output.resolve("html"), manifest);
+        watcher.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.close();
+        TestFixtures.delete(dir);
+        TestFixtures.delete(output);
+    }
+
+    @Test
+    public void deletedEmailRemovesOutput() throws Exception {
+        Path html = output.resolve("html/plain.html");
+        assertTrue(Files.exists(html));
+
+        Files.delete(dir.resolve("plain.html"));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while(Files.exists(html) && System.nanoTime() < deadline)
+            Thread.sleep(20);
+
+        assertFalse(Files.exists(html));
+    }
+
+    @Test
+    public void failedRebuildKeepsWatching() throws Exception {
+        watcher.setListener(result -> {
+            results.add(result);
+            if(results.size() == 1)
+                throw new IllegalStateException("Listener failure");
+        });
+
+        touch(dir.resolve("fragments/footer.inc"), "<p>First</p>");
+        assertNotNull(results.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // A single write can raise more than one event, so wait for the
+        // rebuild that picked up the second edit
+        touch(dir.resolve("fragments/footer.inc"), "<p>Second</p>");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while(!read(output.resolve("html/plain.html")).contains("Second") && System.nanoTime() < deadline)
+            results.poll(100, TimeUnit.MILLISECONDS);
+
+        assertTrue(read(output.resolve("html/plain.html")).contains("Second"));
+    }
+
+    @Test
+    public void sameSizeEditWithinTimestampRecompiles() throws Exception {
+        Path footer = dir.resolve("fragments/footer.inc");
+        touch(footer, "<p>Aaaa</p>");
+        awaitOutput("plain.html", "Aaaa");
+
+        // Same size and modification time, as an edit within the timestamp
+        // resolution of a coarse filesystem would leave it
+        FileTime modified = Files.getLastModifiedTime(footer);
+        touch(footer, "<p>Bbbb</p>");
+        Files.setLastModifiedTime(footer, modified);
+
+        awaitOutput("plain.html", "Bbbb");
+    }
+
+    @Test
+    public void emailsInNewDirectoriesCompile() throws Exception {
+        Path nested = Files.createDirectories(dir.resolve("new/nested"));
+        touch(nested.resolve("late.html"), "<html><head><title>Late</title></head><body><p>Late</p></body></html>");
+
+        awaitOutput("new/nested/late.html", "Late");
+    }
+
+    private void awaitOutput(String email, String content) throws Exception {
+        Path html = output.resolve("html").resolve(email);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while(!(Files.exists(html) && read(html).contains(content)) && System.nanoTime() < deadline)
+            Thread.sleep(20);
+
+        assertTrue(email + " never contained " + content, Files.exists(html) && read(html).contains(content));
+    }
+
+    private static String read(Path file) throws Exception {
+        return new String(Files.readAllBytes(file), Charsets.UTF_8);
+    }
+
+    private static void touch(Path file, String content) throws Exception {
+        Files.write(file, content.getBytes(Charsets.UTF_8));
+    }
+}
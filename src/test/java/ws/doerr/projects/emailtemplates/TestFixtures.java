@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.projects.emailtemplates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Test Fixtures
+ *
+ * Copies the sample emails, template, fragments and stylesheets from the
+ * test resources into a scratch directory, so tests are free to change them.
+ */
+final class TestFixtures {
+    static final List<String> EMAILS = Collections.unmodifiableList(Arrays.asList(
+            "welcome.html", "receipt.html", "newsletter.html", "plain.html"));
+
+    private static final List<String> FRAGMENTS = Arrays.asList(
+            "template.tmpl", "normal.css", "inline.css", "row.inc", "button.inc", "footer.inc");
+
+    private static final String ROOT = "emails/";
+
+    private TestFixtures() {
+    }
+
+    /**
+     * Copy the fixtures into a new scratch directory
+     *
+     * @return the directory holding the emails, with the rest in fragments/
+     * @throws IOException copying the files
+     */
+    static Path create() throws IOException {
+        return populate(Files.createTempDirectory("emailtemplates-test"));
+    }
+
+    /**
+     * Copy the fixtures into a new scratch directory inside another
+     *
+     * @param parent directory to create the scratch directory in, created if
+     * it doesn't exist
+     * @return the directory holding the emails, with the rest in fragments/
+     * @throws IOException copying the files
+     */
+    static Path create(Path parent) throws IOException {
+        return populate(Files.createTempDirectory(Files.createDirectories(parent), "emailtemplates-test"));
+    }
+
+    private static Path populate(Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("fragments"));
+
+        for(String email : EMAILS)
+            copy(ROOT + email, dir.resolve(email));
+
+        for(String fragment : FRAGMENTS)
+            copy(ROOT + "fragments/" + fragment, dir.resolve("fragments").resolve(fragment));
+
+        return dir;
+    }
+
+    /**
+     * Delete a scratch directory and everything in it
+     *
+     * @param dir directory to delete
+     * @throws IOException deleting the files
+     */
+    static void delete(Path dir) throws IOException {
+        if(dir == null || !Files.exists(dir))
+            return;
+
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for(Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    private static void copy(String resource, Path target) throws IOException {
+        try (InputStream input = TestFixtures.class.getResourceAsStream(resource)) {
+            if(input == null)
+                throw new IOException("Missing test resource " + resource);
+            Files.copy(input, target);
+        }
+    }
+}